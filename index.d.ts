@@ -40,6 +40,25 @@ declare module 'cordova-plugin-imagepicker' {
          */
         thumbnailHeight?: number;
         
+        /**
+         * Pixel format of the picker grid thumbnails (Android only). 'auto' uses
+         * 'rgb565' on low-RAM devices and 'hardware' on Android 8+. Default: 'auto'
+         */
+        gridPixelFormat?: 'auto' | 'rgb565' | 'argb8888' | 'hardware';
+        
+        /**
+         * Rows of the picker grid kept bound off screen and laid out ahead of a
+         * scroll (Android only). 0 disables ahead-of-time layout. Default: 2
+         */
+        gridPrefetchRows?: number;
+        
+        /**
+         * Call success once per image as soon as it is processed, then once
+         * more with a completion event (Android only). See
+         * ImagePickerStreamEvent. Default: false
+         */
+        streamResults?: boolean;
+        
         /**
          * Allow video selection. Default: false
          */
@@ -113,6 +132,24 @@ declare module 'cordova-plugin-imagepicker' {
         contentUri?: string;
     }
     
+    /**
+     * Passed to the getPictures success callback with streamResults. One
+     * 'result' event per image, possibly out of selection order, then one
+     * 'complete' event.
+     */
+    type ImagePickerStreamEvent =
+        | {
+            type: 'result';
+            /** Position of the image in the selection */
+            index: number;
+            result: ImagePickerResult | string;
+        }
+        | {
+            type: 'complete';
+            /** Number of images sent */
+            count: number;
+        };
+    
     interface ImagePicker {
         OutputType: {
             FILE_URI: 0;
@@ -126,7 +163,7 @@ declare module 'cordova-plugin-imagepicker' {
          * @param options Options for image selection
          */
         getPictures(
-            success: (results: ImagePickerResult[] | string[]) => void,
+            success: (results: ImagePickerResult[] | string[] | ImagePickerStreamEvent) => void,
             fail: (error: string) => void,
             options?: ImagePickerOptions
         ): void;
@@ -146,6 +183,20 @@ declare module 'cordova-plugin-imagepicker' {
             callback: () => void,
             failureCallback?: (error: string) => void
         ): void;
+        
+        /**
+         * Read the picker's first page and decode its first screen of
+         * thumbnails ahead of time, so the next getPictures opens with a full
+         * grid (Android only). Requires read permission. Kept for a minute.
+         * @param success Called once the preload is done
+         * @param fail Error callback
+         * @param options The gridPixelFormat getPictures will be called with
+         */
+        preload(
+            success?: () => void,
+            fail?: (error: string) => void,
+            options?: Pick<ImagePickerOptions, 'gridPixelFormat'>
+        ): void;
     }
     
     interface Window {
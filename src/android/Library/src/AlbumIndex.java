@@ -0,0 +1,259 @@
+package com.synconset;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+/**
+ * The albums (MediaStore buckets) that hold images, each with its image count
+ * and the newest image as its cover.
+ *
+ * <p>
+ * Built in one pass over a narrow newest-first query, so albums are listed by
+ * their most recent image. The pass does I/O and must run off the main
+ * thread. It also records the album of every image, so that the picker can
+ * apply MediaStore changes to counts and covers with {@link #update} and
+ * {@link #remove} instead of querying again. Albums keep their order until the
+ * next query. Once built, an index is only touched on the main thread.
+ * </p>
+ */
+public class AlbumIndex {
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.BUCKET_ID,
+            MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
+            MediaStore.Images.Media.ORIENTATION,
+            MediaStore.Images.Media.DATE_MODIFIED
+    };
+
+    private static final String SORT_ORDER = MediaStore.Images.Media.DATE_MODIFIED + " DESC, "
+            + MediaStore.Images.Media._ID + " DESC";
+
+    private final long[] bucketIds;
+    private final String[] names;
+    private final int[] counts;
+    private final long[] coverIds;
+    private final int[] coverOrientations;
+    private final long[] coverDatesModified;
+    private int totalCount;
+
+    // The album of each image, by ascending id
+    private long[] imageIds;
+    private int[] imageAlbums;
+
+    private AlbumIndex(int size, int totalCount) {
+        bucketIds = new long[size];
+        names = new String[size];
+        counts = new int[size];
+        coverIds = new long[size];
+        coverOrientations = new int[size];
+        coverDatesModified = new long[size];
+        this.totalCount = totalCount;
+        imageIds = new long[totalCount];
+        imageAlbums = new int[totalCount];
+    }
+
+    /**
+     * @return The albums, or null if MediaStore is unavailable.
+     */
+    public static AlbumIndex query(ContentResolver resolver) {
+        Cursor cursor = resolver.query(MediaPager.CONTENT_URI, PROJECTION, null, null, SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+            int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.BUCKET_ID);
+            int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.BUCKET_DISPLAY_NAME);
+            int orientationColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.ORIENTATION);
+            int dateColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+
+            // Slot of each bucket in the order it was first seen
+            HashMap<Long, Integer> slots = new HashMap<Long, Integer>();
+            int capacity = 16;
+            long[] bucketIds = new long[capacity];
+            String[] names = new String[capacity];
+            int[] counts = new int[capacity];
+            long[] coverIds = new long[capacity];
+            int[] coverOrientations = new int[capacity];
+            long[] coverDates = new long[capacity];
+            long[] imageIds = new long[cursor.getCount()];
+            int[] imageAlbums = new int[cursor.getCount()];
+            int imageCount = 0;
+
+            while (cursor.moveToNext() && imageCount < imageIds.length) {
+                long bucketId = cursor.getLong(bucketColumn);
+                Integer slot = slots.get(bucketId);
+                if (slot == null) {
+                    slot = slots.size();
+                    if (slot == capacity) {
+                        capacity *= 2;
+                        bucketIds = Arrays.copyOf(bucketIds, capacity);
+                        names = Arrays.copyOf(names, capacity);
+                        counts = Arrays.copyOf(counts, capacity);
+                        coverIds = Arrays.copyOf(coverIds, capacity);
+                        coverOrientations = Arrays.copyOf(coverOrientations, capacity);
+                        coverDates = Arrays.copyOf(coverDates, capacity);
+                    }
+                    slots.put(bucketId, slot);
+                    // The first image seen is the newest, it becomes the cover
+                    bucketIds[slot] = bucketId;
+                    names[slot] = cursor.getString(nameColumn);
+                    coverIds[slot] = cursor.getLong(idColumn);
+                    coverOrientations[slot] = cursor.getInt(orientationColumn);
+                    coverDates[slot] = cursor.getLong(dateColumn);
+                }
+                counts[slot]++;
+                imageIds[imageCount] = cursor.getLong(idColumn);
+                imageAlbums[imageCount] = slot;
+                imageCount++;
+            }
+
+            AlbumIndex albums = new AlbumIndex(slots.size(), imageCount);
+            System.arraycopy(bucketIds, 0, albums.bucketIds, 0, slots.size());
+            System.arraycopy(names, 0, albums.names, 0, slots.size());
+            System.arraycopy(counts, 0, albums.counts, 0, slots.size());
+            System.arraycopy(coverIds, 0, albums.coverIds, 0, slots.size());
+            System.arraycopy(coverOrientations, 0, albums.coverOrientations, 0, slots.size());
+            System.arraycopy(coverDates, 0, albums.coverDatesModified, 0, slots.size());
+            // Sorted by id, so that a change finds its image by binary search
+            System.arraycopy(imageIds, 0, albums.imageIds, 0, imageCount);
+            Arrays.sort(albums.imageIds, 0, imageCount);
+            for (int i = 0; i < imageCount; i++) {
+                albums.imageAlbums[albums.indexOfImage(imageIds[i])] = imageAlbums[i];
+            }
+            return albums;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public int size() {
+        return bucketIds.length;
+    }
+
+    /**
+     * @return The number of images in all albums together.
+     */
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public long getBucketId(int album) {
+        return bucketIds[album];
+    }
+
+    /**
+     * @return The display name, may be null for images in the storage root.
+     */
+    public String getName(int album) {
+        return names[album];
+    }
+
+    public int getCount(int album) {
+        return counts[album];
+    }
+
+    public long getCoverId(int album) {
+        return coverIds[album];
+    }
+
+    public int getCoverOrientation(int album) {
+        return coverOrientations[album];
+    }
+
+    public long getCoverDateModified(int album) {
+        return coverDatesModified[album];
+    }
+
+    /**
+     * Counts an image that was added, or moves one that changed to its album
+     * and date. An image newer than the cover of its album becomes the cover.
+     *
+     * @return False if nothing was changed because the albums must be queried
+     *         again: the image is the first of an album not listed yet, or it
+     *         was a cover that may no longer be the newest image of its album.
+     */
+    public boolean update(long id, long bucketId, int orientation, long dateModified) {
+        int album = indexOf(bucketId);
+        if (album == -1) {
+            return false;
+        }
+        int image = indexOfImage(id);
+        int previous = image != -1 ? imageAlbums[image] : -1;
+        if (previous != -1 && coverIds[previous] == id
+                && (previous != album || dateModified < coverDatesModified[previous])) {
+            return false;
+        }
+
+        if (image == -1) {
+            if (totalCount == imageIds.length) {
+                int capacity = Math.max(16, totalCount * 2);
+                imageIds = Arrays.copyOf(imageIds, capacity);
+                imageAlbums = Arrays.copyOf(imageAlbums, capacity);
+            }
+            image = -Arrays.binarySearch(imageIds, 0, totalCount, id) - 1;
+            System.arraycopy(imageIds, image, imageIds, image + 1, totalCount - image);
+            System.arraycopy(imageAlbums, image, imageAlbums, image + 1, totalCount - image);
+            totalCount++;
+            imageIds[image] = id;
+            counts[album]++;
+        } else if (previous != album) {
+            counts[previous]--;
+            counts[album]++;
+        }
+        imageAlbums[image] = album;
+
+        if (coverIds[album] == id || dateModified > coverDatesModified[album]
+                || (dateModified == coverDatesModified[album] && id > coverIds[album])) {
+            coverIds[album] = id;
+            coverOrientations[album] = orientation;
+            coverDatesModified[album] = dateModified;
+        }
+        return true;
+    }
+
+    /**
+     * Uncounts an image that was deleted. Unknown ids are ignored.
+     *
+     * @return False if nothing was changed because the image was the cover of
+     *         its album, and the albums must be queried again.
+     */
+    public boolean remove(long id) {
+        int image = indexOfImage(id);
+        if (image == -1) {
+            return true;
+        }
+        int album = imageAlbums[image];
+        if (coverIds[album] == id) {
+            return false;
+        }
+        counts[album]--;
+        totalCount--;
+        System.arraycopy(imageIds, image + 1, imageIds, image, totalCount - image);
+        System.arraycopy(imageAlbums, image + 1, imageAlbums, image, totalCount - image);
+        return true;
+    }
+
+    private int indexOfImage(long id) {
+        int image = Arrays.binarySearch(imageIds, 0, totalCount, id);
+        return image >= 0 ? image : -1;
+    }
+
+    /**
+     * @return The position of the album, or -1 if there is no such album.
+     */
+    public int indexOf(long bucketId) {
+        for (int i = 0; i < bucketIds.length; i++) {
+            if (bucketIds[i] == bucketId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,156 @@
+package com.synconset;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Pool of bitmaps that are no longer cached or displayed, kept so that
+ * thumbnail decodes can write into them through
+ * {@link BitmapFactory.Options#inBitmap} instead of allocating.
+ *
+ * <p>
+ * Bitmaps are bucketed by allocation size. A request is served from the
+ * smallest bucket that is large enough, as long as it wastes less than half of
+ * the buffer. The pool is bounded in bytes and drops its largest buffers first
+ * when full. Buffer reuse of a different size needs KitKat, so on older
+ * versions the pool stays empty.
+ * </p>
+ */
+public class BitmapPool {
+
+    private final int maxBytes;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    private int size;
+
+    public BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return A mutable bitmap reconfigured to the given size, or null if the
+     *         pool has no suitable buffer.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        int needed = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry(needed);
+        if (bucket == null || bucket.getKey() > needed * 2) {
+            return null;
+        }
+
+        Bitmap bitmap = bucket.getValue().poll();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        size -= bucket.getKey();
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap to the pool. The caller must not use it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || bitmap == null
+                || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > maxBytes) {
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(bytes);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            buckets.put(bytes, bucket);
+        }
+        bucket.push(bitmap);
+        size += bytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return Decode options that reuse a pooled buffer of the given size when
+     *         one is available, and produce a mutable bitmap that can be
+     *         pooled later.
+     */
+    public BitmapFactory.Options decodeOptions(int width, int height, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        if (config != null) {
+            options.inPreferredConfig = config;
+        }
+        options.inBitmap = get(width, height, config);
+        return options;
+    }
+
+    /**
+     * Returns the pooled buffer of the options to the pool, unless the decode
+     * that used them actually wrote into it.
+     */
+    public void reclaim(BitmapFactory.Options options, Bitmap result) {
+        if (options.inBitmap != null && options.inBitmap != result) {
+            put(options.inBitmap);
+        }
+    }
+
+    /**
+     * Decodes a file into a pooled buffer, reading its bounds first to pick
+     * the buffer.
+     */
+    public Bitmap decodeFile(String path, Bitmap.Config config) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = decodeOptions(bounds.outWidth, bounds.outHeight, config);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder could not reuse the buffer, decode without it
+            put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        reclaim(options, bitmap);
+        return bitmap;
+    }
+
+    private void trimToSize(int bytes) {
+        while (size > bytes && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            largest.getValue().poll();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            size -= largest.getKey();
+        }
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
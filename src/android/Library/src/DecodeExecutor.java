@@ -0,0 +1,124 @@
+package com.synconset;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size executor for thumbnail decodes.
+ *
+ * <p>
+ * Queued work runs in priority order and, within one priority, newest first.
+ * The cells bound last are the ones on screen, so they are decoded before
+ * cells that have already scrolled away. Work that was cancelled while still
+ * queued is dropped by {@link #purge()} before it ever reaches a thread.
+ * </p>
+ */
+public class DecodeExecutor extends ThreadPoolExecutor {
+
+    public static final int PRIORITY_VISIBLE = 10;
+    public static final int PRIORITY_PREFETCH = 0;
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    public DecodeExecutor() {
+        this(defaultPoolSize());
+    }
+
+    public DecodeExecutor(int threads) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory());
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * One thread per core, but at least two so a slow thumbnail does not block
+     * the grid, and at most four because the decodes also contend for storage.
+     */
+    private static int defaultPoolSize() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(2, Math.min(cores, 4));
+    }
+
+    /**
+     * @return An executor that queues its work on this pool at the given
+     *         priority, suitable for AsyncTask.executeOnExecutor.
+     */
+    public Executor withPriority(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                DecodeExecutor.this.execute(new PrioritizedRunnable(command, priority, sequence.incrementAndGet()));
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof PrioritizedRunnable)) {
+            command = new PrioritizedRunnable(command, PRIORITY_VISIBLE, sequence.incrementAndGet());
+        }
+        super.execute(command);
+    }
+
+    /**
+     * Removes all queued work whose Future has been cancelled. Unlike the
+     * default implementation this looks through the priority wrapper.
+     */
+    @Override
+    public void purge() {
+        for (Runnable r : getQueue()) {
+            if (r instanceof PrioritizedRunnable && ((PrioritizedRunnable) r).isCancelled()) {
+                getQueue().remove(r);
+            }
+        }
+    }
+
+    private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        private final Runnable command;
+        private final int priority;
+        private final long sequence;
+
+        PrioritizedRunnable(Runnable command, int priority, long sequence) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        boolean isCancelled() {
+            return command instanceof Future && ((Future<?>) command).isCancelled();
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedRunnable other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            // Newest request first
+            return sequence > other.sequence ? -1 : (sequence < other.sequence ? 1 : 0);
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ImagePicker-decode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.synconset;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Works out how to decode a selected image before any pixels are allocated.
+ *
+ * <p>
+ * From the bounds pass and the target size, a plan picks the largest
+ * power-of-two sample size that still decodes at least the target size, and
+ * counts the bytes of every bitmap the resize keeps alive at once. If that
+ * does not fit the given limit, it first drops to RGB_565 for opaque formats
+ * and then samples down further, one power of two at a time. Large panoramas
+ * therefore come out smaller instead of failing with OutOfMemoryError.
+ * </p>
+ *
+ * <p>
+ * The picker plans every image against its whole {@link MemoryBudget}, so an
+ * image is only made smaller when it could not fit even on its own. Several
+ * images that each need most of the budget are then admitted one at a time by
+ * the budget rather than shrunk to run together.
+ * </p>
+ */
+public class DecodePlanner {
+
+    private static final String MIME_JPEG = "image/jpeg";
+
+    /**
+     * How to decode one image.
+     */
+    public static class Plan {
+        private final int sampleSize;
+        private final Bitmap.Config config;
+        private final long bytes;
+        private final int sourceWidth;
+        private final int decodedWidth;
+        private final int outputWidth;
+        private final int outputHeight;
+
+        Plan(int sampleSize, Bitmap.Config config, long bytes, int sourceWidth, int decodedWidth, int outputWidth,
+                int outputHeight) {
+            this.sampleSize = sampleSize;
+            this.config = config;
+            this.bytes = bytes;
+            this.sourceWidth = sourceWidth;
+            this.decodedWidth = decodedWidth;
+            this.outputWidth = outputWidth;
+            this.outputHeight = outputHeight;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public Bitmap.Config getConfig() {
+            return config;
+        }
+
+        /**
+         * @return The width after sampling, before scaling.
+         */
+        public int getDecodedWidth() {
+            return decodedWidth;
+        }
+
+        /**
+         * @return The width of the final bitmap, before rotation.
+         */
+        public int getOutputWidth() {
+            return outputWidth;
+        }
+
+        /**
+         * @return The height of the final bitmap, before rotation.
+         */
+        public int getOutputHeight() {
+            return outputHeight;
+        }
+
+        /**
+         * @return The factor from the source to the final bitmap, the same
+         *         for both axes and so for either orientation.
+         */
+        public float getScale() {
+            return outputWidth / (float) sourceWidth;
+        }
+
+        /**
+         * @return The peak bytes of the bitmaps of the resize.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Decode options following the plan.
+         */
+        public BitmapFactory.Options toOptions() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            return options;
+        }
+    }
+
+    /**
+     * @param bounds
+     *            The result of an inJustDecodeBounds pass.
+     * @param targetWidth
+     *            Width the image is scaled to, the full width if it is not
+     *            scaled.
+     * @param targetHeight
+     *            Height the image is scaled to.
+     * @param rotate
+     *            Whether the image is rotated after it is scaled, which takes
+     *            another bitmap of the target size.
+     * @param maxBytes
+     *            The most memory the image may take at its peak. This limits
+     *            the plan only; whether the image runs now or waits for other
+     *            images to finish is up to the caller.
+     */
+    public static Plan plan(BitmapFactory.Options bounds, int targetWidth, int targetHeight, boolean rotate,
+            long maxBytes) {
+        int width = Math.max(1, bounds.outWidth);
+        int height = Math.max(1, bounds.outHeight);
+        targetWidth = Math.max(1, Math.min(targetWidth, width));
+        targetHeight = Math.max(1, Math.min(targetHeight, height));
+
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        long bytes = peakBytes(width, height, sampleSize, targetWidth, targetHeight, rotate, config);
+        if (bytes > maxBytes && MIME_JPEG.equals(bounds.outMimeType)) {
+            // JPEG has no alpha, so 565 only costs some color precision
+            config = Bitmap.Config.RGB_565;
+            bytes = peakBytes(width, height, sampleSize, targetWidth, targetHeight, rotate, config);
+        }
+        while (bytes > maxBytes && (width / sampleSize > 1 || height / sampleSize > 1)) {
+            sampleSize *= 2;
+            bytes = peakBytes(width, height, sampleSize, targetWidth, targetHeight, rotate, config);
+        }
+        int decodedWidth = (width + sampleSize - 1) / sampleSize;
+        int decodedHeight = (height + sampleSize - 1) / sampleSize;
+        return new Plan(sampleSize, config, bytes, width, decodedWidth, Math.min(decodedWidth, targetWidth),
+                Math.min(decodedHeight, targetHeight));
+    }
+
+    /**
+     * @return The most bytes alive at once while the decoded bitmap is scaled
+     *         to the target, if it is larger, and then rotated.
+     */
+    private static long peakBytes(int width, int height, int sampleSize, int targetWidth, int targetHeight,
+            boolean rotate, Bitmap.Config config) {
+        int bytesPerPixel = BitmapPool.bytesPerPixel(config);
+        // Decoders round sampled dimensions up
+        long decodedWidth = (width + sampleSize - 1) / sampleSize;
+        long decodedHeight = (height + sampleSize - 1) / sampleSize;
+        long decoded = decodedWidth * decodedHeight * bytesPerPixel;
+
+        // A decode sampled below the target is not scaled, only rotated
+        long outWidth = Math.min(decodedWidth, targetWidth);
+        long outHeight = Math.min(decodedHeight, targetHeight);
+        long output = outWidth * outHeight * bytesPerPixel;
+
+        // Each step's source is recycled once the next bitmap exists
+        long bytes = decoded;
+        long last = decoded;
+        if (outWidth < decodedWidth || outHeight < decodedHeight) {
+            bytes = last + output;
+            last = output;
+        }
+        if (rotate) {
+            bytes = Math.max(bytes, last + output);
+        }
+        return bytes;
+    }
+}
@@ -16,27 +16,30 @@
 
 package com.synconset;
 
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.RejectedExecutionException;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.Matrix;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Handler;
-import android.provider.MediaStore;
 import android.util.Log;
-import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
@@ -51,50 +54,204 @@ import android.widget.ImageView;
  * </p>
  * 
  * A local cache of downloaded images is maintained internally to improve
- * performance.
+ * performance. Register the fetcher for component callbacks so the cache
+ * shrinks with memory pressure.
  */
-public class ImageFetcher {
+public class ImageFetcher implements ComponentCallbacks2 {
 
     private int colWidth;
-    private long origId;
-    private ExecutorService executor;
+    private final ThumbnailCache cache;
+    private final ThumbnailDiskCache diskCache;
+    private final BitmapPool pool;
+    private final ThumbnailLoader loader;
+    private final Context context;
 
-    public ImageFetcher() {
-        executor = Executors.newCachedThreadPool();
+    // Decodes that have not completed, visible and prefetch, by image id. Main thread only.
+    private final HashMap<Integer, BitmapFetcherTask> inFlight = new HashMap<Integer, BitmapFetcherTask>();
+
+    // Shared by all fetchers so that reopening the picker does not start new threads
+    private static final DecodeExecutor executor = new DecodeExecutor();
+
+    public ImageFetcher(Context context) {
+        this(context, ThumbnailLoader.chooseConfig(context, ThumbnailLoader.PIXEL_FORMAT_AUTO));
+    }
+
+    /**
+     * @param config
+     *            Pixel format of the grid thumbnails, see
+     *            {@link ThumbnailLoader#chooseConfig}.
+     */
+    public ImageFetcher(Context context, Bitmap.Config config) {
+        this.context = context.getApplicationContext();
+        cache = new ThumbnailCache(context);
+        diskCache = ThumbnailDiskCache.get(context);
+        pool = new BitmapPool(ThumbnailCache.budgetFor(context, POOL_FRACTION));
+        loader = new ThumbnailLoader(this.context, diskCache, pool, config);
+        cache.setOnEvictedListener(new ThumbnailCache.OnEvictedListener() {
+            @Override
+            public void onEvicted(Integer id, Bitmap bitmap) {
+                releaseEvicted(bitmap);
+            }
+        });
     }
 
-    public void fetch(Integer id, ImageView imageView, int colWidth, int rotate) {
+    /**
+     * Binds the thumbnail of the given image to the view, looking in the
+     * memory cache first, then in the disk cache, then asking MediaStore.
+     *
+     * @param colWidth
+     *            Edge of the square grid cell in pixels. Thumbnails are decoded
+     *            and cached at exactly this size.
+     * @param dateModified
+     *            DATE_MODIFIED of the image, so that a thumbnail stored on disk
+     *            before the image was edited is not used.
+     */
+    public void fetch(Integer id, ImageView imageView, int colWidth, int rotate, long dateModified) {
         resetPurgeTimer();
         this.colWidth = colWidth;
-        this.origId = id;
         Bitmap bitmap = getBitmapFromCache(id);
 
         if (bitmap == null) {
-            forceDownload(id, imageView, rotate);
+            forceDownload(id, imageView, rotate, dateModified);
         } else {
             cancelPotentialDownload(id, imageView);
+            bindBitmap(imageView, bitmap);
             imageView.setImageBitmap(bitmap);
         }
     }
 
+    /**
+     * @return The bitmap config thumbnails are shown in.
+     */
+    public Bitmap.Config getConfig() {
+        return loader.getConfig();
+    }
+
+    /**
+     * Adds a thumbnail decoded elsewhere, e.g. by {@link PickerPreloader}, to
+     * the memory cache. It must have been decoded at the cell size and config
+     * of this fetcher.
+     */
+    public void put(Integer id, Bitmap bitmap) {
+        if (id != null && bitmap != null) {
+            addBitmapToCache(id, bitmap);
+        }
+    }
+
+    /**
+     * Sets the edge of the grid cells, so prefetches before the first fetch
+     * decode at the size the grid will show.
+     */
+    public void setCellSize(int colWidth) {
+        this.colWidth = colWidth;
+    }
+
+    /**
+     * Decodes the thumbnail of an image that is about to scroll into view into
+     * the cache, behind any work for visible cells.
+     */
+    public void prefetch(Integer id, int rotate, long dateModified) {
+        if (id == null || inFlight.containsKey(id) || getBitmapFromCache(id) != null) {
+            return;
+        }
+        if (colWidth <= 0) {
+            return;
+        }
+        BitmapFetcherTask task = new BitmapFetcherTask(context, id, rotate, dateModified, true);
+        inFlight.put(id, task);
+        task.executeOnExecutor(executor.withPriority(DecodeExecutor.PRIORITY_PREFETCH), id);
+    }
+
+    /**
+     * Cancels all prefetches that have not completed, e.g. because the scroll
+     * direction changed. Prefetches a visible cell is waiting for are kept.
+     */
+    public void cancelPrefetch() {
+        boolean cancelled = false;
+        Iterator<BitmapFetcherTask> i = inFlight.values().iterator();
+        while (i.hasNext()) {
+            BitmapFetcherTask task = i.next();
+            if (task.prefetch && task.viewCount() == 0) {
+                task.cancelRequest();
+                i.remove();
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            executor.purge();
+        }
+    }
+
+    /**
+     * Stops waiting for the thumbnail the view asked for last, e.g. when its
+     * cell is recycled. The decode keeps running if other views or a prefetch
+     * still want it.
+     */
+    public void cancel(ImageView imageView) {
+        if (getBitmapDownloaderTask(imageView) != null) {
+            cancelPotentialDownload(null, imageView);
+            imageView.setImageDrawable(null);
+        }
+    }
+
+    /**
+     * Empties a view that will show something else, e.g. a recycled cell:
+     * cancels its pending thumbnail and lets the bitmap it showed go back to
+     * the pool once it is no longer cached.
+     */
+    public void release(ImageView imageView) {
+        cancel(imageView);
+        bindBitmap(imageView, null);
+        imageView.setImageDrawable(null);
+    }
+
+    /**
+     * Forgets the cached thumbnail of an image that has changed, and keeps a
+     * decode of the old version that is still running out of the cache.
+     */
+    public void invalidate(Integer id) {
+        cache.remove(id);
+        inFlight.remove(id);
+    }
+
     /**
      * Same as download but the image is always downloaded and the cache is not
      * used. Kept private at the moment as its interest is not clear.
      */
-    private void forceDownload(Integer position, ImageView imageView, int rotate) {
+    private void forceDownload(Integer position, ImageView imageView, int rotate, long dateModified) {
         if (position == null) {
             imageView.setImageDrawable(null);
             return;
         }
 
         if (cancelPotentialDownload(position, imageView)) {
-            BitmapFetcherTask task = new BitmapFetcherTask(imageView.getContext(), imageView, rotate);
-            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(imageView.getContext(), task, origId);
+            BitmapFetcherTask task = inFlight.get(position);
+            if (task != null && task.prefetch && !task.started) {
+                // Still queued at prefetch priority, behind every visible cell
+                task.cancelRequest();
+                inFlight.remove(position);
+                executor.purge();
+                task = null;
+            }
+
+            // Join a decode of the same image that is already running
+            boolean start = task == null;
+            if (start) {
+                task = new BitmapFetcherTask(imageView.getContext(), position, rotate, dateModified, false);
+                inFlight.put(position, task);
+            }
+            task.attach(imageView);
+
+            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(imageView.getContext(), task);
+            bindBitmap(imageView, null);
             imageView.setImageDrawable(downloadedDrawable);
             imageView.setMinimumHeight(colWidth);
 
+            if (!start) {
+                return;
+            }
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                task.executeOnExecutor(executor, position);
+                task.executeOnExecutor(executor.withPriority(DecodeExecutor.PRIORITY_VISIBLE), position);
             } else {
                 try {
                     task.execute(position);
@@ -110,19 +267,23 @@ public class ImageFetcher {
      * Returns true if the current download has been canceled or if there was no
      * download in progress on this image view. Returns false if the download in
      * progress deals with the same url. The download is not stopped in that
-     * case.
+     * case, nor when other views are still waiting for it.
      */
-    private static boolean cancelPotentialDownload(Integer position, ImageView imageView) {
+    private boolean cancelPotentialDownload(Integer position, ImageView imageView) {
         BitmapFetcherTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
-        long origId = getOrigId(imageView);
 
         if (bitmapDownloaderTask != null) {
             Integer bitmapPosition = bitmapDownloaderTask.position;
             if ((bitmapPosition == null) || (!bitmapPosition.equals(position))) {
-                // Log.d("DAVID", "Canceling...");
-                MediaStore.Images.Thumbnails.cancelThumbnailRequest(imageView.getContext().getContentResolver(),
-                        origId, 12345);
-                bitmapDownloaderTask.cancel(true);
+                if (bitmapDownloaderTask.detach(imageView) == 0 && !bitmapDownloaderTask.prefetch) {
+                    // Log.d("DAVID", "Canceling...");
+                    bitmapDownloaderTask.cancelRequest();
+                    if (inFlight.get(bitmapPosition) == bitmapDownloaderTask) {
+                        inFlight.remove(bitmapPosition);
+                    }
+                    // Drop it from the queue if it has not started yet
+                    executor.purge();
+                }
             } else {
                 return false;
             }
@@ -147,30 +308,67 @@ public class ImageFetcher {
         return null;
     }
 
-    private static long getOrigId(ImageView imageView) {
-        if (imageView != null) {
-            Drawable drawable = imageView.getDrawable();
-            if (drawable instanceof DownloadedDrawable) {
-                DownloadedDrawable downloadedDrawable = (DownloadedDrawable) drawable;
-                return downloadedDrawable.getOrigId();
-            }
-        }
-        return -1;
-    }
-
     /**
-     * The actual AsyncTask that will asynchronously download the image.
+     * The actual AsyncTask that will asynchronously download the image. Every
+     * view that asks for the same image while it runs is attached to it, so
+     * the image is only decoded once.
      */
     class BitmapFetcherTask extends AsyncTask<Integer, Void, Bitmap> {
         private Integer position;
-        private final WeakReference<ImageView> imageViewReference;
+        private final ArrayList<WeakReference<ImageView>> imageViewReferences = new ArrayList<WeakReference<ImageView>>();
         private final Context mContext;
         private final int rotate;
-
-        public BitmapFetcherTask(Context context, ImageView imageView, int rotate) {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+        private final long dateModified;
+        private final int size;
+        private final boolean prefetch;
+        private final CancellationSignal signal;
+        private volatile boolean started;
+
+        public BitmapFetcherTask(Context context, Integer position, int rotate, long dateModified, boolean prefetch) {
+            // Known up front so a task still waiting in the queue is not mistaken for another image
+            this.position = position;
             mContext = context;
             this.rotate = rotate;
+            this.dateModified = dateModified;
+            this.size = colWidth;
+            this.prefetch = prefetch;
+            this.signal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new CancellationSignal() : null;
+        }
+
+        void attach(ImageView imageView) {
+            imageViewReferences.add(new WeakReference<ImageView>(imageView));
+        }
+
+        /**
+         * @return The number of views still waiting for this task.
+         */
+        int detach(ImageView imageView) {
+            Iterator<WeakReference<ImageView>> i = imageViewReferences.iterator();
+            while (i.hasNext()) {
+                ImageView view = i.next().get();
+                if (view == null || view == imageView) {
+                    i.remove();
+                }
+            }
+            return imageViewReferences.size();
+        }
+
+        int viewCount() {
+            return imageViewReferences.size();
+        }
+
+        /**
+         * Cancels the task and aborts the thumbnail request it may already be
+         * waiting on.
+         */
+        void cancelRequest() {
+            cancel(true);
+            if (signal != null) {
+                signal.cancel();
+            }
+            if (started) {
+                loader.cancel(position);
+            }
         }
 
         /**
@@ -178,70 +376,70 @@ public class ImageFetcher {
          */
         @Override
         protected Bitmap doInBackground(Integer... params) {
+            started = true;
         	try {
-	            position = params[0];
-	            if (isCancelled()) {
-	                return null;
-	            }
-	            Bitmap thumb = MediaStore.Images.Thumbnails.getThumbnail(mContext.getContentResolver(), position, 12345,
-	                    MediaStore.Images.Thumbnails.MINI_KIND, null);
 	            if (isCancelled()) {
 	                return null;
 	            }
+	            Bitmap thumb = loader.load(position, dateModified, size, signal);
 	            if (thumb == null) {
 	                return null;
 	            } else {
 	                if (isCancelled()) {
+	                    pool.put(thumb);
 	                    return null;
 	                } else {
-	                    if (rotate != 0) {
-	                        Matrix matrix = new Matrix();
-	                        thumb = Bitmap.createBitmap(thumb, 0, 0, thumb.getWidth(), thumb.getHeight(), matrix, true);
-	                    }
+	                    // The rotate branch used to copy the thumbnail through an identity
+	                    // Matrix, which changed nothing but cost a second bitmap.
 	                    return thumb;
 	                }
 	            }
         	}catch(OutOfMemoryError error) {
-        		clearCache();
+        		// Free what is not on screen, the cache state is only touched on the main thread
+        		purgeHandler.post(new Runnable() {
+        		    public void run() {
+        		        onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+        		    }
+        		});
         		return null;
         	}
 
         }
 
-        private void setInvisible() {
-            // Log.d("COLLAGE", "Setting something invisible...");
-            if (imageViewReference != null) {
-                final ImageView imageView = imageViewReference.get();
-                BitmapFetcherTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
-                if (this == bitmapDownloaderTask) {
-                    imageView.setVisibility(View.GONE);
-                    imageView.setClickable(false);
-                    imageView.setEnabled(false);
-                }
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            if (inFlight.get(position) == this) {
+                inFlight.remove(position);
             }
+            // Never cached or displayed, so the buffer can be reused right away
+            pool.put(bitmap);
         }
 
         /**
-         * Once the image is downloaded, associates it to the imageView
+         * Once the image is downloaded, associates it to every imageView still
+         * waiting for it
          */
         @Override
         protected void onPostExecute(Bitmap bitmap) {
             if (isCancelled()) {
                 bitmap = null;
             }
-            addBitmapToCache(position, bitmap);
-            if (imageViewReference != null) {
-                ImageView imageView = imageViewReference.get();
+            if (inFlight.get(position) == this) {
+                inFlight.remove(position);
+                addBitmapToCache(position, bitmap);
+            }
+            for (WeakReference<ImageView> reference : imageViewReferences) {
+                ImageView imageView = reference.get();
                 BitmapFetcherTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
                 if (this == bitmapDownloaderTask) {
+                    bindBitmap(imageView, bitmap);
                     imageView.setImageBitmap(bitmap);
                     Animation anim = AnimationUtils.loadAnimation(imageView.getContext(), android.R.anim.fade_in);
                     imageView.setAnimation(anim);
                     anim.start();
                 }
-            } else {
-                setInvisible();
             }
+            imageViewReferences.clear();
         }
     }
 
@@ -258,16 +456,10 @@ public class ImageFetcher {
      */
     static class DownloadedDrawable extends ColorDrawable {
         private final WeakReference<BitmapFetcherTask> bitmapDownloaderTaskReference;
-        private long origId;
 
-        public DownloadedDrawable(Context mContext, BitmapFetcherTask bitmapDownloaderTask, long origId) {
+        public DownloadedDrawable(Context mContext, BitmapFetcherTask bitmapDownloaderTask) {
             super(Color.TRANSPARENT);
             bitmapDownloaderTaskReference = new WeakReference<BitmapFetcherTask>(bitmapDownloaderTask);
-            this.origId = origId;
-        }
-
-        public long getOrigId() {
-            return origId;
         }
 
         public BitmapFetcherTask getBitmapDownloaderTask() {
@@ -278,31 +470,18 @@ public class ImageFetcher {
     /*
      * Cache-related fields and methods.
      * 
-     * We use a hard and a soft cache. A soft reference cache is too aggressively cleared by the
-     * Garbage Collector.
+     * The cache is bounded in bytes and evicts in LRU order, see ThumbnailCache.
      */
 
-    private static final int HARD_CACHE_CAPACITY = 100;
     private static final int DELAY_BEFORE_PURGE = 10 * 1000; // in milliseconds
+    private static final float POOL_FRACTION = 1f / 32;
 
-    // Hard cache, with a fixed maximum capacity and a life duration
-    private final HashMap<Integer, Bitmap> sHardBitmapCache = new LinkedHashMap<Integer, Bitmap>(
-            HARD_CACHE_CAPACITY / 2, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(HashMap.Entry<Integer, Bitmap> eldest) {
-            if (size() > HARD_CACHE_CAPACITY) {
-                // Entries push-out of hard reference cache are transferred to
-                // soft reference cache
-                sSoftBitmapCache.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
-                return true;
-            } else
-                return false;
-        }
-    };
-
-    // Soft cache for bitmaps kicked out of hard cache
-    private final static ConcurrentHashMap<Integer, SoftReference<Bitmap>> sSoftBitmapCache = new ConcurrentHashMap<Integer, SoftReference<Bitmap>>(
-            HARD_CACHE_CAPACITY / 2);
+    /*
+     * A bitmap can only go back to the pool once it is neither cached nor
+     * shown by any view. Both collections are only touched on the main thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap> boundBitmaps = new WeakHashMap<ImageView, Bitmap>();
+    private final Set<Bitmap> evictedWhileBound = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
 
     private final Handler purgeHandler = new Handler();
 
@@ -319,11 +498,7 @@ public class ImageFetcher {
      *            The newly downloaded bitmap.
      */
     private void addBitmapToCache(Integer position, Bitmap bitmap) {
-        if (bitmap != null) {
-            synchronized (sHardBitmapCache) {
-                sHardBitmapCache.put(position, bitmap);
-            }
-        }
+        cache.put(position, bitmap);
     }
 
     /**
@@ -332,32 +507,51 @@ public class ImageFetcher {
      * @return The cached bitmap or null if it was not found.
      */
     private Bitmap getBitmapFromCache(Integer position) {
-        // First try the hard reference cache
-        synchronized (sHardBitmapCache) {
-            final Bitmap bitmap = sHardBitmapCache.get(position);
-            if (bitmap != null) {
-                // Log.d("CACHE ****** ", "Hard hit!");
-                // Bitmap found in hard cache
-                // Move element to first position, so that it is removed last
-                return bitmap;
-            }
+        return cache.get(position);
+    }
+
+    /**
+     * Records which bitmap a view shows, and releases the one it showed before
+     * if nothing else holds on to it.
+     */
+    private void bindBitmap(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = bitmap != null ? boundBitmaps.put(imageView, bitmap) : boundBitmaps.remove(imageView);
+        if (previous != null && previous != bitmap && !boundBitmaps.containsValue(previous)
+                && evictedWhileBound.remove(previous)) {
+            pool.put(previous);
         }
+    }
 
-        // Then try the soft reference cache
-        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(position);
-        if (bitmapReference != null) {
-            final Bitmap bitmap = bitmapReference.get();
-            if (bitmap != null) {
-                // Bitmap found in soft cache
-                // Log.d("CACHE ****** ", "Soft hit!");
-                return bitmap;
-            } else {
-                // Soft reference has been Garbage Collected
-                sSoftBitmapCache.remove(position);
+    /**
+     * Forgets the bitmaps of views that are no longer attached to a window or
+     * no longer show them, e.g. cells scrolled off and waiting for reuse, so
+     * a trim does not keep them.
+     */
+    private void unbindDetached() {
+        ArrayList<ImageView> detached = new ArrayList<ImageView>();
+        for (Map.Entry<ImageView, Bitmap> entry : boundBitmaps.entrySet()) {
+            ImageView imageView = entry.getKey();
+            if (imageView != null
+                    && (imageView.getWindowToken() == null || !showsBitmap(imageView, entry.getValue()))) {
+                detached.add(imageView);
             }
         }
+        for (ImageView imageView : detached) {
+            bindBitmap(imageView, null);
+        }
+    }
 
-        return null;
+    private static boolean showsBitmap(ImageView imageView, Bitmap bitmap) {
+        Drawable drawable = imageView.getDrawable();
+        return drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() == bitmap;
+    }
+
+    private void releaseEvicted(Bitmap bitmap) {
+        if (boundBitmaps.containsValue(bitmap)) {
+            evictedWhileBound.add(bitmap);
+        } else {
+            pool.put(bitmap);
+        }
     }
 
     /**
@@ -366,8 +560,39 @@ public class ImageFetcher {
      * after a certain inactivity delay.
      */
     public void clearCache() {
-        sHardBitmapCache.clear();
-        sSoftBitmapCache.clear();
+        cache.evictAll();
+        pool.clear();
+    }
+
+    /**
+     * Releases memory by level instead of waiting for an OutOfMemoryError.
+     * Moderate pressure trims the cache to half its budget, low memory to a
+     * quarter and drops the pool, and critical pressure keeps only the
+     * thumbnails of views that are attached and still show them.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            cancelPrefetch();
+            unbindDetached();
+            cache.evictAllExcept(boundBitmaps.values());
+            pool.clear();
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            cancelPrefetch();
+            cache.trimToFraction(0.25f);
+            pool.clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_MODERATE) {
+            cache.trimToFraction(0.5f);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
     }
 
     /**
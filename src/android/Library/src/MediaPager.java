@@ -0,0 +1,252 @@
+package com.synconset;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+
+/**
+ * Reads the images in MediaStore, or those of one album, newest first, one
+ * page at a time.
+ *
+ * <p>
+ * Pages are selected by keyset rather than by offset: each page starts after
+ * the <code>(DATE_MODIFIED, _ID)</code> of the last row of the previous one,
+ * so SQLite can seek to it instead of skipping every row before it, and the
+ * first page costs the same however large the library is. Rows added while
+ * paging sort before the keyset and are not repeated.
+ * </p>
+ *
+ * <p>
+ * On Android 11 and later the MediaStore generation is read before the first
+ * page, so that later changes can be fetched with
+ * {@link #queryModifiedSince} instead of reading everything again.
+ * </p>
+ *
+ * <p>
+ * {@link #nextPage} and the static queries do I/O and must be called off the main thread, by one
+ * thread at a time.
+ * </p>
+ */
+public class MediaPager {
+
+    public static final Uri CONTENT_URI = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+
+    public static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.ORIENTATION,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.WIDTH,
+            MediaStore.Images.Media.HEIGHT,
+            MediaStore.Images.Media.BUCKET_ID
+    };
+
+    private static final String SORT_ORDER = MediaStore.Images.Media.DATE_MODIFIED + " DESC, "
+            + MediaStore.Images.Media._ID + " DESC";
+
+    private static final String AFTER_KEY = MediaStore.Images.Media.DATE_MODIFIED + " < ? OR ("
+            + MediaStore.Images.Media.DATE_MODIFIED + " = ? AND " + MediaStore.Images.Media._ID + " < ?)";
+
+    private static final String IN_BUCKET = MediaStore.Images.Media.BUCKET_ID + " = ?";
+
+    // Bound parameters per id lookup, below SQLite's limit of 999
+    public static final int MAX_IDS_PER_QUERY = 500;
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final boolean bucketScoped;
+    private final long bucketId;
+
+    private long generation = -1;
+    private boolean started;
+    private long lastDateModified;
+    private long lastId;
+    private boolean exhausted;
+
+    public MediaPager(Context context) {
+        this.context = context.getApplicationContext();
+        this.resolver = context.getContentResolver();
+        this.bucketScoped = false;
+        this.bucketId = 0;
+    }
+
+    /**
+     * Pages through one album only, so its images are read without reading
+     * those of every other album in between. The generation is not read.
+     */
+    public MediaPager(Context context, long bucketId) {
+        this.context = context.getApplicationContext();
+        this.resolver = context.getContentResolver();
+        this.bucketScoped = true;
+        this.bucketId = bucketId;
+    }
+
+    /**
+     * Continues after an image that was already read elsewhere, e.g. the last
+     * image of an album among the pages of all images.
+     */
+    public void startAfter(long dateModified, long id) {
+        started = true;
+        lastDateModified = dateModified;
+        lastId = id;
+    }
+
+    /**
+     * @return The MediaStore generation read before the first page, -1 before
+     *         Android 11, before the first page was read, or for one album.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return True once a page came back short, i.e. every image has been read.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Queries the next page of at most limit images and copies it into an
+     * index, so the main thread never touches the cursor.
+     *
+     * @return The page, or null if there is none or MediaStore is unavailable.
+     */
+    public MediaIndex nextPage(int limit) {
+        if (exhausted) {
+            return null;
+        }
+
+        String selection = null;
+        String[] selectionArgs = null;
+        if (!started && generation == -1 && !bucketScoped) {
+            // Anything modified after this shows up in queryModifiedSince
+            generation = currentGeneration(context);
+        }
+        if (started) {
+            String date = String.valueOf(lastDateModified);
+            selection = AFTER_KEY;
+            selectionArgs = new String[] { date, date, String.valueOf(lastId) };
+        }
+        if (bucketScoped) {
+            String bucket = String.valueOf(bucketId);
+            selection = selection != null ? IN_BUCKET + " AND (" + selection + ")" : IN_BUCKET;
+            selectionArgs = selectionArgs != null
+                    ? new String[] { bucket, selectionArgs[0], selectionArgs[1], selectionArgs[2] }
+                    : new String[] { bucket };
+        }
+
+        Cursor cursor;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            cursor = queryLimited(selection, selectionArgs, limit);
+        } else {
+            // MediaStore ignores QUERY_ARG_LIMIT before Android 11, but passes
+            // the sort order straight to SQLite
+            cursor = resolver.query(CONTENT_URI, PROJECTION, selection, selectionArgs,
+                    SORT_ORDER + " LIMIT " + limit);
+        }
+        MediaIndex page = copyAndClose(cursor);
+        if (page == null) {
+            exhausted = true;
+            return null;
+        }
+
+        int count = page.size();
+        if (count < limit) {
+            exhausted = true;
+        }
+        if (count > 0) {
+            started = true;
+            lastDateModified = page.getDateModified(count - 1);
+            lastId = page.getId(count - 1);
+        }
+        return page;
+    }
+
+    /**
+     * @return The current MediaStore generation of external storage, -1
+     *         before Android 11.
+     */
+    public static long currentGeneration(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return -1;
+        }
+        return MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL);
+    }
+
+    /**
+     * @return The images added or modified after the given generation, newest
+     *         first.
+     */
+    @TargetApi(Build.VERSION_CODES.R)
+    public static MediaIndex queryModifiedSince(ContentResolver resolver, long generation) {
+        Cursor cursor = resolver.query(CONTENT_URI, PROJECTION,
+                MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?",
+                new String[] { String.valueOf(generation) }, SORT_ORDER);
+        return copyAndClose(cursor);
+    }
+
+    /**
+     * @return The given images that still exist, newest first within each
+     *         batch of {@link #MAX_IDS_PER_QUERY}.
+     */
+    public static MediaIndex queryIds(ContentResolver resolver, long[] ids) {
+        MediaIndex result = new MediaIndex(ids.length);
+        for (int from = 0; from < ids.length; from += MAX_IDS_PER_QUERY) {
+            int count = Math.min(MAX_IDS_PER_QUERY, ids.length - from);
+            Cursor cursor = resolver.query(CONTENT_URI, PROJECTION, idSelection(count),
+                    idSelectionArgs(ids, from, count), SORT_ORDER);
+            MediaIndex batch = copyAndClose(cursor);
+            if (batch != null) {
+                result.addAll(batch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A selection matching count ids, for {@link #idSelectionArgs}.
+     */
+    public static String idSelection(int count) {
+        StringBuilder where = new StringBuilder(MediaStore.Images.Media._ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        return where.append(')').toString();
+    }
+
+    public static String[] idSelectionArgs(long[] ids, int from, int count) {
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = String.valueOf(ids[from + i]);
+        }
+        return args;
+    }
+
+    private static MediaIndex copyAndClose(Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return MediaIndex.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.R)
+    private Cursor queryLimited(String selection, String[] selectionArgs, int limit) {
+        Bundle args = new Bundle();
+        if (selection != null) {
+            args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            args.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+        }
+        args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, SORT_ORDER);
+        args.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+        return resolver.query(CONTENT_URI, PROJECTION, args, null);
+    }
+}
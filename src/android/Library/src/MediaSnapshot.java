@@ -0,0 +1,121 @@
+package com.synconset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The first page of the picker grid as it was last read, kept in the
+ * application's cache directory so the next picker can draw it before
+ * MediaStore answers.
+ *
+ * <p>
+ * The file is a fixed-size row per image: _ID, ORIENTATION, DATE_MODIFIED,
+ * WIDTH, HEIGHT and BUCKET_ID, 36 bytes each, after a short header. A page of
+ * 120 images takes about 4 KB and reads in well under a millisecond once the
+ * file is in the page cache. It is written to a temporary file and renamed,
+ * so a reader never sees half a snapshot.
+ * </p>
+ */
+public class MediaSnapshot {
+
+    private static final String TAG = "ImagePicker";
+    private static final String FILE_NAME = "imagepicker-snapshot.bin";
+    private static final int MAGIC = 0x49505331; // "IPS1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int ROW_BYTES = 36;
+
+    /**
+     * @return The snapshot, or null if there is none or it cannot be read.
+     */
+    public static MediaIndex read(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || HEADER_BYTES + (long) count * ROW_BYTES > file.length()) {
+                return null;
+            }
+            MediaIndex index = new MediaIndex(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                int orientation = in.readInt();
+                long dateModified = in.readLong();
+                int width = in.readInt();
+                int height = in.readInt();
+                long bucketId = in.readLong();
+                index.add(id, orientation, dateModified, width, height, bucketId);
+            }
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the media snapshot", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given rows. Does I/O, call it off the
+     * main thread.
+     */
+    public static void write(Context context, MediaIndex index) {
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            for (int i = 0; i < index.size(); i++) {
+                out.writeLong(index.getId(i));
+                out.writeInt(index.getOrientation(i));
+                out.writeLong(index.getDateModified(i));
+                out.writeInt(index.getWidth(i));
+                out.writeInt(index.getHeight(i));
+                out.writeLong(index.getBucketId(i));
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the media snapshot", e);
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+}
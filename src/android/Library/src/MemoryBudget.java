@@ -0,0 +1,65 @@
+package com.synconset;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Counts the bytes of bitmaps being worked on by several threads, and holds
+ * back new work while the estimate of what is in flight would exceed a budget.
+ *
+ * <p>
+ * A request larger than the whole budget is let through once nothing else is
+ * in flight, so one large image is still processed, just on its own.
+ * </p>
+ */
+public class MemoryBudget {
+
+    private final long capacity;
+    private long used;
+
+    public MemoryBudget(long capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * A budget of what bitmaps can take right now without pushing the process
+     * towards OutOfMemoryError: half of the free Java heap before Android 8,
+     * where pixels live on the heap, and a quarter of the available system
+     * memory from Android 8, where they live in native memory.
+     */
+    public static MemoryBudget forBitmaps(Context context) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return new MemoryBudget(heapFree / 2);
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return new MemoryBudget(heapFree / 2);
+        }
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        return new MemoryBudget(info.availMem / 4);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Blocks until the bytes fit in the budget, then counts them as in
+     * flight.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (used > 0 && used + bytes > capacity) {
+            wait();
+        }
+        used += bytes;
+    }
+
+    public synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+}
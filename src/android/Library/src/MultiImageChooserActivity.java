@@ -31,63 +31,145 @@
 package com.synconset;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.synconset.FakeR;
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.LoaderManager;
 import android.app.ProgressDialog;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.content.pm.ActivityInfo;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.MediaStore;
 import android.util.Base64;
-import android.util.SparseBooleanArray;
-import android.view.Display;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.Size;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AbsListView;
-import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
-import android.widget.GridView;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.Spinner;
+import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.ActionBar;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-public class MultiImageChooserActivity extends AppCompatActivity implements
-        OnItemClickListener,
-        LoaderManager.LoaderCallbacks<Cursor> {
+public class MultiImageChooserActivity extends AppCompatActivity {
 
     private static final String TAG = "ImagePicker";
+    private static final String MIME_JPEG = "image/jpeg";
+
+    // JPEG markers read while a JPEG is copied as is
+    private static final int JPEG_APP1 = 0xe1;
+    private static final int JPEG_START_OF_SCAN = 0xda;
+    private static final int JPEG_END_OF_IMAGE = 0xd9;
+    // Namespaces that start the APP1 segments of an XMP packet and its extension
+    private static final byte[][] XMP_SIGNATURES = {
+            "http://ns.adobe.com/xap/1.0/\0".getBytes(Charset.forName("US-ASCII")),
+            "http://ns.adobe.com/xmp/extension/\0".getBytes(Charset.forName("US-ASCII"))
+    };
+
+    // Removed from JPEGs that are copied as is, see ResizeImagesTask.writeExif
+    @SuppressLint("InlinedApi")
+    private static final String[] STRIPPED_EXIF_TAGS = {
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_AREA_INFORMATION,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_DEST_BEARING,
+            ExifInterface.TAG_GPS_DEST_BEARING_REF,
+            ExifInterface.TAG_GPS_DEST_DISTANCE,
+            ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
+            ExifInterface.TAG_GPS_DEST_LATITUDE,
+            ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
+            ExifInterface.TAG_GPS_DEST_LONGITUDE,
+            ExifInterface.TAG_GPS_DEST_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_DIFFERENTIAL,
+            ExifInterface.TAG_GPS_DOP,
+            ExifInterface.TAG_GPS_IMG_DIRECTION,
+            ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_MAP_DATUM,
+            ExifInterface.TAG_GPS_MEASURE_MODE,
+            ExifInterface.TAG_GPS_PROCESSING_METHOD,
+            ExifInterface.TAG_GPS_SATELLITES,
+            ExifInterface.TAG_GPS_SPEED,
+            ExifInterface.TAG_GPS_SPEED_REF,
+            ExifInterface.TAG_GPS_STATUS,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_TRACK,
+            ExifInterface.TAG_GPS_TRACK_REF,
+            ExifInterface.TAG_GPS_VERSION_ID,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_MAKER_NOTE,
+            ExifInterface.TAG_SOFTWARE,
+            ExifInterface.TAG_ARTIST,
+            ExifInterface.TAG_COPYRIGHT,
+            ExifInterface.TAG_IMAGE_DESCRIPTION,
+            ExifInterface.TAG_USER_COMMENT,
+            ExifInterface.TAG_IMAGE_UNIQUE_ID,
+            ExifInterface.TAG_XMP,
+            // Known to ExifInterface before their constants were public
+            "CameraOwnerName",
+            "BodySerialNumber",
+            "LensSerialNumber"
+    };
 
     public static final int NOLIMIT = -1;
     public static final String MAX_IMAGES_KEY = "MAX_IMAGES";
@@ -98,19 +180,95 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
     public static final String INCLUDE_THUMBNAIL_KEY = "INCLUDE_THUMBNAIL";
     public static final String THUMBNAIL_WIDTH_KEY = "THUMBNAIL_WIDTH";
     public static final String THUMBNAIL_HEIGHT_KEY = "THUMBNAIL_HEIGHT";
+    public static final String GRID_PIXEL_FORMAT_KEY = "GRID_PIXEL_FORMAT";
+    public static final String GRID_PREFETCH_ROWS_KEY = "GRID_PREFETCH_ROWS";
+    public static final String STREAM_RESULTS_KEY = "STREAM_RESULTS";
 
     private ImageAdapter ia;
 
-    private Cursor imagecursor, actualimagecursor;
-    private int image_column_index, image_column_orientation, actual_image_column_index, orientation_column_index;
+    // Every loaded image in display order, only touched on the main thread
+    private final MediaIndex loaded = new MediaIndex();
+    // The images shown: loaded itself, or the loaded images of the chosen album
+    private MediaIndex index = loaded;
+    private boolean albumFiltered;
+    private long albumBucketId;
+
+    private static final String ALBUM_FILTERED_KEY = "albumFiltered";
+    private static final String ALBUM_BUCKET_ID_KEY = "albumBucketId";
+    private static final int ALBUM_COVER_DP = 48;
+
+    private AlbumIndex albums;
+    private AlbumLoadTask albumLoadTask;
+    // The album scan waits for the first page, so the two queries do not compete
+    private boolean albumsPending;
+    private AlbumAdapter albumAdapter;
+    private Spinner albumSpinner;
     private int colWidth;
+    private int gridColumns;
+
+    // Cells are at least this wide, as many columns as fit the window
+    private static final int GRID_CELL_DP = 110;
+    private static final int GRID_MIN_COLUMNS = 3;
+    private static final int GRID_SPACING_DP = 8;
+    private static final int DEFAULT_PREFETCH_ROWS = 2;
+
+    // Partial rebinds, see ImageAdapter.onBindViewHolder
+    private static final Object PAYLOAD_SELECTION = new Object();
+    private static final Object PAYLOAD_THUMBNAIL = new Object();
+
+    // Rows prefetched ahead of the viewport while scrolling, scaled with speed
+    private static final int PREFETCH_MIN_ROWS = 2;
+    private static final int PREFETCH_MAX_ROWS = 6;
+    private static final float PREFETCH_LOOKAHEAD_SECONDS = 0.5f;
+
+    // The first page only has to fill the screen, later ones are larger
+    static final int FIRST_PAGE_SIZE = 120;
+    private static final int PAGE_SIZE = 600;
+    // The next page is requested once the last visible cell is this close to the end
+    private static final int PAGE_LOAD_AHEAD = 120;
+
+    // Month sections of the grid, for the fast scroll handle
+    private final SectionIndex sections = new SectionIndex();
+    private SectionScrubber scrubber;
+    private SimpleDateFormat sectionFormat;
+    private boolean scrubbing;
+    // Position the handle was dragged to before its page was loaded
+    private int pendingJump = -1;
+    // The handle is shown once the grid is this many screens long
+    private static final int SCRUBBER_MIN_SCREENS = 4;
+
+    // Feeds loaded, and the grid while all images are shown
+    private MediaPager pager;
+    // Feeds the grid while one album is shown
+    private MediaPager albumPager;
+    private PageLoadTask pageLoadTask;
+    // The grid shows the rows of the last MediaSnapshot until the first page arrives
+    private boolean snapshotShown;
+    private ContentObserver mediaObserver;
+
+    // MediaStore notifications arrive in bursts, they are applied together
+    private static final int MEDIA_CHANGE_DELAY_MS = 300;
+
+    private final Handler mediaHandler = new Handler();
+    private MediaDeltaTask mediaDeltaTask;
+    // Generation the index is up to date with, -1 before Android 11
+    private long mediaGeneration = -1;
+    // Changes not applied yet, main thread only
+    private final HashSet<Long> changedIds = new HashSet<Long>();
+    private final HashSet<Long> deletedIds = new HashSet<Long>();
+    private boolean changedSinceGeneration;
+    private boolean reloadPending;
+
+    private final Runnable applyMediaChanges = new Runnable() {
+        public void run() {
+            applyMediaChanges();
+        }
+    };
 
-    private static final int CURSORLOADER_THUMBS = 0;
-    private static final int CURSORLOADER_REAL = 1;
-
-    private Map<String, Integer> fileNames = new HashMap<String, Integer>();
+    private static final String SELECTION_KEY = "selection";
 
-    private SparseBooleanArray checkStatus = new SparseBooleanArray();
+    // Selected images by _ID, with their rotation, in the order they were picked
+    private final SelectionSet selection = new SelectionSet();
 
     private int maxImages;
     private int maxImageCount;
@@ -120,10 +278,12 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
     private int quality;
     private OutputType outputType;
     private boolean includeThumbnail;
+    // Each result goes to ResultStream as soon as it is ready
+    private boolean streamResults;
     private int thumbnailWidth;
     private int thumbnailHeight;
 
-    private final ImageFetcher fetcher = new ImageFetcher();
+    private ImageFetcher fetcher;
 
     private int selectedColor = 0xff32b2e1;
     private boolean shouldRequestThumb = true;
@@ -139,57 +299,176 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
         super.onCreate(savedInstanceState);
         fakeR = new FakeR(this);
         setContentView(fakeR.getId("layout", "multiselectorgrid"));
-        fileNames.clear();
+        selection.clear();
+        fetcher = new ImageFetcher(this,
+                ThumbnailLoader.chooseConfig(this, getIntent().getStringExtra(GRID_PIXEL_FORMAT_KEY)));
+        getApplicationContext().registerComponentCallbacks(fetcher);
 
         maxImages = getIntent().getIntExtra(MAX_IMAGES_KEY, NOLIMIT);
         desiredWidth = getIntent().getIntExtra(WIDTH_KEY, 0);
         desiredHeight = getIntent().getIntExtra(HEIGHT_KEY, 0);
         quality = getIntent().getIntExtra(QUALITY_KEY, 0);
         maxImageCount = maxImages;
+        if (savedInstanceState != null) {
+            // Keyed by _ID, so it still matches after the index is reloaded
+            selection.restoreFrom(savedInstanceState, SELECTION_KEY);
+            if (maxImageCount != NOLIMIT) {
+                maxImages = maxImageCount - selection.size();
+            }
+            albumFiltered = savedInstanceState.getBoolean(ALBUM_FILTERED_KEY);
+            albumBucketId = savedInstanceState.getLong(ALBUM_BUCKET_ID_KEY);
+            if (albumFiltered) {
+                index = new MediaIndex();
+            }
+        }
         outputType = OutputType.fromValue(getIntent().getIntExtra(OUTPUT_TYPE_KEY, 0));
         includeThumbnail = getIntent().getBooleanExtra(INCLUDE_THUMBNAIL_KEY, true);
+        streamResults = getIntent().getBooleanExtra(STREAM_RESULTS_KEY, false) && ResultStream.get().isOpen();
         thumbnailWidth = getIntent().getIntExtra(THUMBNAIL_WIDTH_KEY, 200);
         thumbnailHeight = getIntent().getIntExtra(THUMBNAIL_HEIGHT_KEY, 200);
 
-        Display display = getWindowManager().getDefaultDisplay();
-        int width = display.getWidth();
-
-        colWidth = width / 4;
-
-        GridView gridView = (GridView) findViewById(fakeR.getId("id", "gridview"));
-        gridView.setOnItemClickListener(this);
-        gridView.setOnScrollListener(new OnScrollListener() {
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        // Columns and cell edge from the window, thumbnails are decoded at this
+        // size, so a screen of cells takes about the same memory on any device
+        Rect window = getWindowBounds(this);
+        int spacing = getGridSpacing(this);
+        gridColumns = getGridColumns(this, window.width());
+        colWidth = getColumnWidth(this, window.width(), gridColumns);
+        fetcher.setCellSize(colWidth);
+        final GridLayoutManager layoutManager = new GridLayoutManager(this, gridColumns);
+
+        // Keep a few rows bound off screen and enough views recycled to refill a
+        // screen during a fling without inflating
+        int prefetchRows = Math.max(0, getIntent().getIntExtra(GRID_PREFETCH_ROWS_KEY, DEFAULT_PREFETCH_ROWS));
+        int visibleRows = window.height() / Math.max(1, colWidth + spacing) + 1;
+        layoutManager.setItemPrefetchEnabled(prefetchRows > 0);
+        gridView.setLayoutManager(layoutManager);
+        gridView.setHasFixedSize(true);
+        gridView.setItemViewCacheSize(prefetchRows * gridColumns);
+        gridView.getRecycledViewPool().setMaxRecycledViews(0, (visibleRows + prefetchRows) * gridColumns);
+        gridView.addItemDecoration(new SpacingDecoration(spacing, gridColumns));
+
+        gridView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             private int lastFirstItem = 0;
             private long timestamp = System.currentTimeMillis();
+            private int direction = 0;
 
             @Override
-            public void onScrollStateChanged(AbsListView view, int scrollState) {
-                if (scrollState == SCROLL_STATE_IDLE) {
-                    shouldRequestThumb = true;
-                    ia.notifyDataSetChanged();
+            public void onScrollStateChanged(RecyclerView view, int scrollState) {
+                if (scrollState == RecyclerView.SCROLL_STATE_IDLE && !scrubbing) {
+                    requestVisibleThumbnails();
                 }
             }
 
             @Override
-            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            public void onScrolled(RecyclerView view, int dx, int dy) {
+                int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+                if (firstVisibleItem == RecyclerView.NO_POSITION || scrubbing) {
+                    // Jumps of the scrubber neither load pages nor prefetch
+                    return;
+                }
+                updateScrubber();
+                int visibleItemCount = layoutManager.findLastVisibleItemPosition() - firstVisibleItem + 1;
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                if (ia.getItemCount() - lastVisibleItem <= PAGE_LOAD_AHEAD) {
+                    loadNextPage();
+                }
                 float dt = System.currentTimeMillis() - timestamp;
                 if (firstVisibleItem != lastFirstItem) {
                     double speed = 1 / dt * 1000;
+                    int newDirection = firstVisibleItem > lastFirstItem ? 1 : -1;
+                    if (direction != 0 && newDirection != direction) {
+                        // What was prefetched for the other direction is not needed any more
+                        fetcher.cancelPrefetch();
+                    }
+                    direction = newDirection;
                     lastFirstItem = firstVisibleItem;
                     timestamp = System.currentTimeMillis();
 
                     // Limit if we go faster than a page a second
                     shouldRequestThumb = speed < visibleItemCount;
+
+                    if (shouldRequestThumb) {
+                        int rows = Math.min(PREFETCH_MAX_ROWS,
+                                PREFETCH_MIN_ROWS + (int) (speed * PREFETCH_LOOKAHEAD_SECONDS));
+                        prefetchAhead(firstVisibleItem, visibleItemCount, direction,
+                                rows * gridColumns);
+                    }
                 }
             }
         });
 
         ia = new ImageAdapter();
+        ia.setHasStableIds(true);
         gridView.setAdapter(ia);
 
-        LoaderManager.enableDebugLogging(false);
-        getLoaderManager().initLoader(CURSORLOADER_THUMBS, null, this);
-        getLoaderManager().initLoader(CURSORLOADER_REAL, null, this);
+        sectionFormat = new SimpleDateFormat("MMMM yyyy", Locale.getDefault());
+        scrubber = (SectionScrubber) findViewById(fakeR.getId("id", "scrubber"));
+        scrubber.setColor(selectedColor);
+        scrubber.setOnScrubListener(new SectionScrubber.OnScrubListener() {
+            @Override
+            public void onScrubStart() {
+                // Cells passed over are bound without their thumbnail
+                scrubbing = true;
+                shouldRequestThumb = false;
+                fetcher.cancelPrefetch();
+            }
+
+            @Override
+            public void onScrub(float fraction) {
+                jumpTo(Math.round(fraction * (getExpectedCount() - 1)));
+            }
+
+            @Override
+            public void onScrubEnd() {
+                scrubbing = false;
+                if (pendingJump == -1) {
+                    requestVisibleThumbnails();
+                }
+            }
+        });
+
+        albumAdapter = new AlbumAdapter();
+        albumSpinner = (Spinner) findViewById(fakeR.getId("id", "album_spinner"));
+        albumSpinner.setAdapter(albumAdapter);
+        albumSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (albums == null) {
+                    // Laid out before the albums are known, keep the restored album
+                    return;
+                }
+                if (position == 0) {
+                    showAlbum(false, 0);
+                } else {
+                    showAlbum(true, albums.getBucketId(position - 1));
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        // MediaStore changes are applied to the index as they happen
+        mediaObserver = new ContentObserver(mediaHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onMediaChanged(null, false);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onMediaChanged(uri, false);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri, int flags) {
+                onMediaChanged(uri, (flags & ContentResolver.NOTIFY_DELETE) != 0);
+            }
+        };
+        getContentResolver().registerContentObserver(MediaPager.CONTENT_URI, true, mediaObserver);
+        reloadPages();
         setupHeader();
         updateAcceptButton();
         progress = new ProgressDialog(this);
@@ -198,15 +477,49 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
     }
 
     @Override
-    public void onItemClick(AdapterView<?> arg0, View view, int position, long id) {
-        String name = getImageName(position);
-        int rotation = getImageRotation(position);
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        selection.saveTo(outState, SELECTION_KEY);
+        outState.putBoolean(ALBUM_FILTERED_KEY, albumFiltered);
+        outState.putLong(ALBUM_BUCKET_ID_KEY, albumBucketId);
+    }
+
+    @Override
+    public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mediaObserver);
+        mediaHandler.removeCallbacks(applyMediaChanges);
+        if (mediaDeltaTask != null) {
+            mediaDeltaTask.cancel(false);
+        }
+        if (albumLoadTask != null) {
+            albumLoadTask.cancel(false);
+        }
+        if (pageLoadTask != null) {
+            pageLoadTask.cancel(false);
+        }
+        getApplicationContext().unregisterComponentCallbacks(fetcher);
+        fetcher.cancelPrefetch();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // While the selection is processed the grid is hidden behind the progress
+        // dialog, so its thumbnails can make room for the full size decodes.
+        if (progress != null && progress.isShowing() && level >= TRIM_MEMORY_RUNNING_LOW) {
+            fetcher.clearCache();
+        }
+    }
 
-        if (name == null) {
+    public void onItemClick(int position) {
+        if (position >= index.size()) {
             return;
         }
+        long id = index.getId(position);
+        int rotation = index.getOrientation(position);
 
-        boolean isChecked = !isChecked(position);
+        boolean isChecked = !selection.contains(id);
 
         if (maxImages == 0 && isChecked) {
             isChecked = false;
@@ -222,99 +535,584 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
                     .show();
 
         } else if (isChecked) {
-            fileNames.put(name, rotation);
+            selection.add(id, rotation);
 
             if (maxImageCount == 1) {
                 selectClicked();
 
             } else {
                 maxImages--;
-                ImageView imageView = (ImageView) view;
+            }
+        } else {
+            selection.remove(id);
+            maxImages++;
+        }
 
-                if (android.os.Build.VERSION.SDK_INT >= 16) {
-                  imageView.setImageAlpha(128);
-                } else {
-                  imageView.setAlpha(128);
-                }
+        // Only the tapped cell changes
+        ia.notifyItemChanged(position, PAYLOAD_SELECTION);
+        updateAcceptButton();
+    }
+
+    /**
+     * @return The bounds of the activity's window, which may be smaller than
+     *         the display in multi-window mode.
+     */
+    static Rect getWindowBounds(Activity activity) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return activity.getWindowManager().getCurrentWindowMetrics().getBounds();
+        }
+        DisplayMetrics metrics = activity.getResources().getDisplayMetrics();
+        return new Rect(0, 0, metrics.widthPixels, metrics.heightPixels);
+    }
+
+    static int getGridSpacing(Context context) {
+        return Math.round(GRID_SPACING_DP * context.getResources().getDisplayMetrics().density);
+    }
+
+    /**
+     * @return As many columns as fit the window at GRID_CELL_DP each.
+     */
+    static int getGridColumns(Context context, int windowWidth) {
+        float density = context.getResources().getDisplayMetrics().density;
+        return Math.max(GRID_MIN_COLUMNS, (int) (windowWidth / density) / GRID_CELL_DP);
+    }
+
+    /**
+     * @return The edge of a grid cell in pixels, thumbnails are decoded at
+     *         this size.
+     */
+    static int getColumnWidth(Context context, int windowWidth, int columns) {
+        return (windowWidth - getGridSpacing(context) * (columns - 1)) / columns;
+    }
+
+    /**
+     * Drops the loaded pages and loads the grid again from the first page.
+     */
+    private void reloadPages() {
+        if (pageLoadTask != null) {
+            pageLoadTask.cancel(false);
+            pageLoadTask = null;
+        }
+        loaded.clear();
+        index.clear();
+        sections.clear();
+        snapshotShown = false;
+        pendingJump = -1;
+        ia.notifyDataSetChanged();
+
+        mediaGeneration = -1;
+        albumPager = albumFiltered ? new MediaPager(this, albumBucketId) : null;
+        PickerPreloader.Preload preload = PickerPreloader.take(colWidth, fetcher.getConfig());
+        if (preload != null) {
+            usePreload(preload);
+        } else {
+            pager = new MediaPager(this);
+            if (index == loaded) {
+                showSnapshot();
+            }
+        }
+        if (preload == null || index != loaded) {
+            loadNextPage();
+        }
+        albumsPending = true;
+        if (pageLoadTask == null) {
+            loadPendingAlbums();
+        }
+    }
 
-                view.setBackgroundColor(selectedColor);
+    /**
+     * Shows the first page as the last picker read it, until the first page
+     * is read again. The snapshot is a few KB, read on the main thread so the
+     * first frame already has the grid.
+     */
+    private void showSnapshot() {
+        MediaIndex snapshot = MediaSnapshot.read(this);
+        if (snapshot == null || snapshot.size() == 0) {
+            return;
+        }
+        snapshotShown = true;
+        loaded.addAll(snapshot);
+        sections.append(index);
+        ia.notifyItemRangeInserted(0, snapshot.size());
+    }
+
+    /**
+     * Replaces the rows of the snapshot with the first page as MediaStore has
+     * it now. Only the differences are notified, so cells that did not
+     * change keep their bindings and thumbnails.
+     */
+    private void reconcileSnapshot(MediaIndex page) {
+        snapshotShown = false;
+        final MediaIndex snapshot = new MediaIndex(loaded.size());
+        snapshot.addAll(loaded);
+        final MediaIndex current = page != null ? page : new MediaIndex();
+
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return snapshot.size();
             }
+
+            @Override
+            public int getNewListSize() {
+                return current.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return snapshot.getId(oldPosition) == current.getId(newPosition);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return snapshot.getDateModified(oldPosition) == current.getDateModified(newPosition)
+                        && snapshot.getOrientation(oldPosition) == current.getOrientation(newPosition);
+            }
+        });
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            long id = snapshot.getId(i);
+            int position = current.indexOf(id);
+            if (position == -1 || current.getDateModified(position) != snapshot.getDateModified(i)) {
+                // Gone or edited since the snapshot was written
+                fetcher.invalidate((int) id);
+            }
+        }
+        loaded.clear();
+        loaded.addAll(current);
+        if (index == loaded) {
+            sections.rebuild(index);
+            diff.dispatchUpdatesTo(ia);
+            updateScrubber();
+        }
+    }
+
+    /**
+     * Shows the first page read by {@link PickerPreloader} before the picker
+     * was opened. Its thumbnails go straight into the cache, so the first
+     * frame is drawn complete.
+     */
+    private void usePreload(PickerPreloader.Preload preload) {
+        MediaIndex page = preload.getPage();
+        for (int i = 0; i < preload.getThumbnailCount(); i++) {
+            fetcher.put((int) page.getId(i), preload.getThumbnail(i));
+        }
+        pager = preload.getPager();
+        mediaGeneration = pager.getGeneration();
+        onPageLoaded(page);
+        if (mediaGeneration != -1) {
+            // Pick up whatever changed between the preload and now
+            changedSinceGeneration = true;
+            mediaHandler.post(applyMediaChanges);
+        }
+    }
+
+    /**
+     * Starts the album scan that reloadPages held back, once the first page
+     * has been read.
+     */
+    private void loadPendingAlbums() {
+        if (albumsPending) {
+            albumsPending = false;
+            loadAlbums();
+        }
+    }
+
+    /**
+     * Scans the library for albums. The scan reads every image, so it runs
+     * beside the serial executor instead of on it, where pages, media deltas
+     * and the final resize would wait behind it.
+     */
+    private void loadAlbums() {
+        if (albumLoadTask != null) {
+            albumLoadTask.cancel(false);
+        }
+        albumLoadTask = new AlbumLoadTask();
+        albumLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onAlbumsLoaded(AlbumIndex result) {
+        albums = result;
+        albumAdapter.notifyDataSetChanged();
+        albumSpinner.setVisibility(albums != null && albums.size() > 1 ? View.VISIBLE : View.GONE);
+
+        int album = albumFiltered && albums != null ? albums.indexOf(albumBucketId) : -1;
+        if (album == -1) {
+            // The album is gone, or all images are shown
+            albumSpinner.setSelection(0, false);
+            showAlbum(false, 0);
         } else {
-            fileNames.remove(name);
-            maxImages++;
-            ImageView imageView = (ImageView) view;
+            albumSpinner.setSelection(album + 1, false);
+        }
+        updateScrubber();
+    }
+
+    /**
+     * Switches the grid to one album, or to all images. The album's images
+     * are filtered out of those already loaded, the rest are read by a pager
+     * of the album alone. Only the thumbnails of the album shown are decoded.
+     */
+    private void showAlbum(boolean filtered, long bucketId) {
+        if (filtered == albumFiltered && (!filtered || bucketId == albumBucketId)) {
+            return;
+        }
+        albumFiltered = filtered;
+        albumBucketId = bucketId;
+        fetcher.cancelPrefetch();
+
+        if (filtered) {
+            index = new MediaIndex();
+            albumPager = new MediaPager(this, bucketId);
+            if (!snapshotShown) {
+                // The loaded pages hold the album's newest images, its pager continues after them
+                index.addAll(loaded, bucketId);
+                int last = index.size() - 1;
+                if (last >= 0) {
+                    albumPager.startAfter(index.getDateModified(last), index.getId(last));
+                }
+            }
+        } else {
+            index = loaded;
+            albumPager = null;
+        }
+        sections.rebuild(index);
+        pendingJump = -1;
+        ia.notifyDataSetChanged();
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        gridView.scrollToPosition(0);
+        loadMoreIfNeeded();
+        updateScrubber();
+    }
+
+    /**
+     * Records a MediaStore notification. The change is applied after a short
+     * delay, together with any that follow it.
+     */
+    private void onMediaChanged(Uri uri, boolean deleted) {
+        long id = -1;
+        if (uri != null) {
+            try {
+                id = ContentUris.parseId(uri);
+            } catch (NumberFormatException e) {
+                // A whole table changed
+            } catch (UnsupportedOperationException e) {
+                // Not a hierarchical URI
+            }
+        }
 
-            if (android.os.Build.VERSION.SDK_INT >= 16) {
-                imageView.setImageAlpha(255);
+        if (id <= 0) {
+            // Without an id only a generation scan can tell what was added or
+            // updated, and nothing can tell what was deleted
+            if (deleted || mediaGeneration == -1) {
+                reloadPending = true;
             } else {
-                imageView.setAlpha(255);
+                changedSinceGeneration = true;
             }
+        } else if (deleted) {
+            deletedIds.add(id);
+        } else {
+            // Also looked up by id: a row that was trashed, made pending or
+            // is no longer an image is missing from the generation scan, and
+            // only a lookup that finds nothing tells it is gone
+            changedIds.add(id);
+            if (mediaGeneration != -1) {
+                changedSinceGeneration = true;
+            }
+        }
+
+        mediaHandler.removeCallbacks(applyMediaChanges);
+        mediaHandler.postDelayed(applyMediaChanges, MEDIA_CHANGE_DELAY_MS);
+    }
+
+    private void applyMediaChanges() {
+        if (mediaDeltaTask != null) {
+            // Picked up again when it completes
+            return;
+        }
+        if (reloadPending) {
+            reloadPending = false;
+            changedIds.clear();
+            deletedIds.clear();
+            changedSinceGeneration = false;
+            reloadPages();
+            return;
+        }
+        if (changedIds.isEmpty() && deletedIds.isEmpty() && !changedSinceGeneration) {
+            return;
+        }
+
+        mediaDeltaTask = new MediaDeltaTask(toArray(changedIds), toArray(deletedIds),
+                changedSinceGeneration ? mediaGeneration : -1);
+        changedIds.clear();
+        deletedIds.clear();
+        changedSinceGeneration = false;
+        mediaDeltaTask.execute();
+    }
 
-            view.setBackgroundColor(Color.TRANSPARENT);
+    /**
+     * Applies changed rows to the index and the grid with targeted
+     * notifications, so scroll position and bound cells are kept. Album
+     * counts and covers are adjusted from the same rows; the albums are only
+     * queried again when that cannot tell, see {@link AlbumIndex#update}.
+     *
+     * @param queried
+     *            Ids that were looked up, those missing from changed are gone.
+     */
+    private void onMediaDelta(MediaIndex changed, long[] queried, long[] deleted) {
+        // A query still running may have missed the change, so it is started again
+        boolean albumsStale = albums == null || albumLoadTask != null || albumsPending;
+        HashSet<Long> found = new HashSet<Long>();
+        for (int i = 0; i < changed.size(); i++) {
+            found.add(changed.getId(i));
         }
+        for (long id : queried) {
+            if (!found.contains(id)) {
+                removeFromIndex(id);
+                if (!albumsStale && !albums.remove(id)) {
+                    albumsStale = true;
+                }
+            }
+        }
+        for (long id : deleted) {
+            removeFromIndex(id);
+            if (!albumsStale && !albums.remove(id)) {
+                albumsStale = true;
+            }
+        }
+
+        for (int i = 0; i < changed.size(); i++) {
+            long id = changed.getId(i);
+            long dateModified = changed.getDateModified(i);
+            if (!albumsStale
+                    && !albums.update(id, changed.getBucketId(i), changed.getOrientation(i), dateModified)) {
+                albumsStale = true;
+            }
+            int loadedFrom = loaded.indexOf(id);
+            if (loadedFrom != -1) {
+                loaded.remove(loadedFrom);
+            }
+            int from = loadedFrom;
+            if (index != loaded) {
+                from = index.indexOf(id);
+                if (from != -1) {
+                    index.remove(from);
+                }
+            }
+            if (loadedFrom != -1 || from != -1) {
+                fetcher.invalidate((int) id);
+            }
+
+            int loadedTo = loaded.insertionPoint(dateModified, id);
+            // Past the loaded pages a later page brings it
+            boolean inLoadedRange = loadedTo < loaded.size() || pager.isExhausted();
+            if (inLoadedRange) {
+                loaded.insert(loadedTo, changed, i);
+            }
 
-        checkStatus.put(position, isChecked);
+            int to = loadedTo;
+            boolean shown = inLoadedRange;
+            if (index != loaded) {
+                to = index.insertionPoint(dateModified, id);
+                shown = changed.getBucketId(i) == albumBucketId
+                        && (to < index.size() || albumPager.isExhausted());
+                if (shown) {
+                    index.insert(to, changed, i);
+                }
+            }
+            if (!shown) {
+                if (from != -1) {
+                    ia.notifyItemRemoved(from);
+                }
+                continue;
+            }
+
+            if (from == -1) {
+                ia.notifyItemInserted(to);
+            } else {
+                if (from != to) {
+                    ia.notifyItemMoved(from, to);
+                }
+                ia.notifyItemChanged(to);
+            }
+        }
+        sections.rebuild(index);
         updateAcceptButton();
+        if (!albumsStale) {
+            albumAdapter.notifyDataSetChanged();
+            updateScrubber();
+        } else if (!albumsPending) {
+            // A scan still held back sees the change when it runs
+            loadAlbums();
+        }
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int cursorID, Bundle arg1) {
-        ArrayList<String> img = new ArrayList<String>();
-        switch (cursorID) {
-            case CURSORLOADER_THUMBS:
-                img.add(MediaStore.Images.Media._ID);
-                img.add(MediaStore.Images.Media.ORIENTATION);
-                break;
-
-            case CURSORLOADER_REAL:
-                img.add(MediaStore.Images.Thumbnails.DATA);
-                img.add(MediaStore.Images.Media.ORIENTATION);
-                break;
-        }
-
-        return new CursorLoader(
-                this,
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                img.toArray(new String[img.size()]),
-                null,
-                null,
-                "DATE_MODIFIED DESC"
-        );
+    private void removeFromIndex(long id) {
+        int loadedPosition = loaded.indexOf(id);
+        if (loadedPosition != -1) {
+            loaded.remove(loadedPosition);
+        }
+        int position = loadedPosition;
+        if (index != loaded) {
+            position = index.indexOf(id);
+            if (position != -1) {
+                index.remove(position);
+            }
+        }
+        if (position != -1) {
+            ia.notifyItemRemoved(position);
+        }
+        fetcher.invalidate((int) id);
+        if (selection.remove(id) && maxImageCount != NOLIMIT) {
+            maxImages++;
+        }
     }
 
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        if (cursor == null) {
-            // NULL cursor. This usually means there's no image database yet....
+    private static long[] toArray(HashSet<Long> ids) {
+        long[] result = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Starts loading the next page unless one is already loading or every
+     * image has been read. File paths are only looked up for the selected
+     * images once the selection is processed, see queryPaths.
+     */
+    private void loadNextPage() {
+        MediaPager current = getGridPager();
+        if (pageLoadTask != null || current == null || current.isExhausted()) {
             return;
         }
+        // Only the first page of all images is kept as the snapshot
+        boolean first = index == loaded && (loaded.size() == 0 || snapshotShown);
+        int limit = first || index.size() == 0 ? FIRST_PAGE_SIZE : PAGE_SIZE;
+        pageLoadTask = new PageLoadTask(current, limit, first);
+        pageLoadTask.execute();
+    }
 
-        switch (loader.getId()) {
-            case CURSORLOADER_THUMBS:
-                imagecursor = cursor;
-                image_column_index = imagecursor.getColumnIndex(MediaStore.Images.Media._ID);
-                image_column_orientation = imagecursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
-                ia.notifyDataSetChanged();
-                break;
+    /**
+     * @return The pager that brings the images the grid shows next.
+     */
+    private MediaPager getGridPager() {
+        return index == loaded ? pager : albumPager;
+    }
 
-            case CURSORLOADER_REAL:
-                actualimagecursor = cursor;
-                actual_image_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                orientation_column_index = actualimagecursor.getColumnIndexOrThrow(MediaStore.Images.Media.ORIENTATION);
-                break;
+    /**
+     * Loads the next page while the grid is still short of the read-ahead,
+     * e.g. because the album shown has few images in the pages loaded so far.
+     */
+    private void loadMoreIfNeeded() {
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        GridLayoutManager layoutManager = (GridLayoutManager) gridView.getLayoutManager();
+        if (ia.getItemCount() - layoutManager.findLastVisibleItemPosition() <= PAGE_LOAD_AHEAD) {
+            loadNextPage();
         }
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        switch (loader.getId()) {
-            case CURSORLOADER_THUMBS:
-                imagecursor = null;
-                break;
+    private void onPageLoaded(MediaIndex page) {
+        if (snapshotShown) {
+            reconcileSnapshot(page);
+            return;
+        }
+        if (page == null || page.size() == 0) {
+            return;
+        }
+
+        int start = loaded.size();
+        loaded.addAll(page);
+        if (index == loaded) {
+            sections.append(index);
+            ia.notifyItemRangeInserted(start, page.size());
+            updateScrubber();
+        }
+    }
+
+    private void onAlbumPageLoaded(MediaIndex page) {
+        if (page == null || page.size() == 0) {
+            return;
+        }
+        int start = index.size();
+        index.addAll(page);
+        sections.append(index);
+        ia.notifyItemRangeInserted(start, page.size());
+        updateScrubber();
+    }
+
+    /**
+     * @return The number of images the grid will show once every page is
+     *         loaded, as far as it is known.
+     */
+    private int getExpectedCount() {
+        int expected = index.size();
+        if (albums != null && !getGridPager().isExhausted()) {
+            int album = albumFiltered ? albums.indexOf(albumBucketId) : -1;
+            expected = Math.max(expected, album != -1 ? albums.getCount(album) : albums.getTotalCount());
+        }
+        return expected;
+    }
+
+    /**
+     * Moves the grid to the start of the month holding the given position.
+     * The grid jumps there without scrolling, so only the cells at that spot
+     * are bound. A position past the loaded pages is reached once the pages
+     * up to it have been loaded; reading them decodes no thumbnails.
+     */
+    private void jumpTo(int position) {
+        if (position >= index.size() && !getGridPager().isExhausted()) {
+            pendingJump = position;
+            loadNextPage();
+            return;
+        }
+        pendingJump = -1;
+        int section = sections.sectionForPosition(Math.min(position, index.size() - 1));
+        if (section == -1) {
+            return;
+        }
+        scrubber.setLabel(sectionFormat.format(new Date(sections.getMonthStart(section) * 1000)));
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        ((GridLayoutManager) gridView.getLayoutManager()).scrollToPositionWithOffset(sections.getOffset(section), 0);
+        if (!scrubbing) {
+            // Released before the pages were loaded
+            gridView.post(new Runnable() {
+                @Override
+                public void run() {
+                    requestVisibleThumbnails();
+                }
+            });
+        }
+    }
 
-            case CURSORLOADER_REAL:
-                actualimagecursor = null;
-                break;
+    /**
+     * Shows the fast scroll handle on long grids and moves it to the first
+     * visible cell.
+     */
+    private void updateScrubber() {
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        GridLayoutManager layoutManager = (GridLayoutManager) gridView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int visible = Math.max(1, layoutManager.findLastVisibleItemPosition() - first + 1);
+        int expected = getExpectedCount();
+        scrubber.setVisibility(expected > visible * SCRUBBER_MIN_SCREENS ? View.VISIBLE : View.GONE);
+        if (first != RecyclerView.NO_POSITION) {
+            scrubber.setPosition(first / (float) Math.max(1, expected - visible));
+        }
+    }
+
+    /**
+     * Lets the visible cells request the thumbnails they were bound without
+     * during a fling or a jump.
+     */
+    private void requestVisibleThumbnails() {
+        shouldRequestThumb = true;
+        RecyclerView gridView = (RecyclerView) findViewById(fakeR.getId("id", "gridview"));
+        GridLayoutManager layoutManager = (GridLayoutManager) gridView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first != RecyclerView.NO_POSITION) {
+            ia.notifyItemRangeChanged(first, last - first + 1, PAYLOAD_THUMBNAIL);
         }
     }
 
@@ -328,13 +1126,13 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
         abDoneView.setEnabled(false);
         progress.show();
 
-        if (fileNames.isEmpty()) {
+        if (selection.isEmpty()) {
             setResult(RESULT_CANCELED);
             progress.dismiss();
             finish();
         } else {
             setRequestedOrientation(getResources().getConfiguration().orientation); //prevent orientation changes during processing
-            new ResizeImagesTask().execute(fileNames.entrySet());
+            new ResizeImagesTask(selection.getIds(), selection.getRotations()).execute();
         }
     }
 
@@ -344,7 +1142,7 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
      ********************/
     private void updateAcceptButton() {
         if (abDoneView != null) {
-            abDoneView.setEnabled(fileNames.size() != 0);
+            abDoneView.setEnabled(selection.size() != 0);
         }
     }
 
@@ -405,34 +1203,55 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
         }
     }
 
-    private String getImageName(int position) {
-        actualimagecursor.moveToPosition(position);
-        String name = null;
-
-        try {
-            name = actualimagecursor.getString(actual_image_column_index);
-        } catch (Exception e) {
-            // Do something?
+    /**
+     * Looks up the file paths of the given images, in batches of at most
+     * MediaPager.MAX_IDS_PER_QUERY ids. Images that are gone from MediaStore are missing
+     * from the result. Does I/O, call it off the main thread.
+     */
+    private Map<Long, String> queryPaths(long[] ids) {
+        Map<Long, String> paths = new HashMap<Long, String>();
+        String[] projection = {MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA};
+
+        for (int from = 0; from < ids.length; from += MediaPager.MAX_IDS_PER_QUERY) {
+            int count = Math.min(MediaPager.MAX_IDS_PER_QUERY, ids.length - from);
+            Cursor cursor = getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    projection, MediaPager.idSelection(count), MediaPager.idSelectionArgs(ids, from, count), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+                int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+                while (cursor.moveToNext()) {
+                    paths.put(cursor.getLong(idColumn), cursor.getString(dataColumn));
+                }
+            } finally {
+                cursor.close();
+            }
         }
-
-        return name;
+        return paths;
     }
 
-    private int getImageRotation(int position) {
-        actualimagecursor.moveToPosition(position);
-        int rotation = 0;
-
-        try {
-            rotation = actualimagecursor.getInt(orientation_column_index);
-        } catch (Exception e) {
-            // Do something?
+    /**
+     * Queues thumbnails for the given number of cells beyond the visible ones,
+     * in the direction of the scroll. The farthest cell is queued first, since
+     * the decode queue runs the newest request first.
+     */
+    private void prefetchAhead(int firstVisible, int visibleCount, int direction, int count) {
+        int start = direction > 0 ? firstVisible + visibleCount : firstVisible - count;
+        int end = Math.min(start + count, index.size());
+        start = Math.max(start, 0);
+
+        for (int i = 0; i < end - start; i++) {
+            int position = direction > 0 ? end - 1 - i : start + i;
+            fetcher.prefetch((int) index.getId(position),
+                    index.getOrientation(position),
+                    index.getDateModified(position));
         }
-
-        return rotation;
     }
 
     public boolean isChecked(int position) {
-        return checkStatus.get(position);
+        return position < index.size() && selection.contains(index.getId(position));
     }
 
     /*********************
@@ -450,47 +1269,124 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
     }
 
 
-    private class ImageAdapter extends BaseAdapter {
+    /**
+     * Spreads the spacing between the columns so that every cell gets the same
+     * width, and puts the same spacing between rows.
+     */
+    private static class SpacingDecoration extends RecyclerView.ItemDecoration {
+        private final int spacing;
+        private final int columns;
 
-        public int getCount() {
-            if (imagecursor != null) {
-                return imagecursor.getCount();
-            } else {
-                return 0;
+        SpacingDecoration(int spacing, int columns) {
+            this.spacing = spacing;
+            this.columns = columns;
+        }
+
+        @Override
+        public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+            int position = parent.getChildAdapterPosition(view);
+            if (position == RecyclerView.NO_POSITION) {
+                return;
             }
+            int column = position % columns;
+            outRect.left = column * spacing / columns;
+            outRect.right = spacing - (column + 1) * spacing / columns;
+            outRect.top = position >= columns ? spacing : 0;
         }
+    }
 
-        public Object getItem(int position) {
-            return position;
+    private class ImageHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final ImageView imageView;
+        boolean thumbRequested;
+
+        ImageHolder(ImageView imageView) {
+            super(imageView);
+            this.imageView = imageView;
+            imageView.setOnClickListener(this);
         }
 
-        public long getItemId(int position) {
-            return position;
+        @Override
+        public void onClick(View view) {
+            int position = getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                onItemClick(position);
+            }
         }
+    }
 
-        // create a new ImageView for each item referenced by the Adapter
-        public View getView(int position, View convertView, ViewGroup parent) {
+    private class ImageAdapter extends RecyclerView.Adapter<ImageHolder> {
 
-            if (convertView == null) {
-                ImageView temp = new SquareImageView(MultiImageChooserActivity.this);
-                temp.setScaleType(ImageView.ScaleType.CENTER_CROP);
-                convertView = temp;
-            }
+        @Override
+        public int getItemCount() {
+            return index.size();
+        }
 
-            ImageView imageView = (ImageView) convertView;
-            imageView.setImageBitmap(null);
+        /**
+         * The MediaStore _ID, so cells keep their views and animations when the
+         * index is reloaded.
+         */
+        @Override
+        public long getItemId(int position) {
+            return index.getId(position);
+        }
+
+        // create a new ImageView for each cell the grid lays out
+        @Override
+        public ImageHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            ImageView temp = new SquareImageView(MultiImageChooserActivity.this);
+            temp.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            temp.setLayoutParams(new RecyclerView.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT,
+                    ViewGroup.LayoutParams.WRAP_CONTENT));
+            return new ImageHolder(temp);
+        }
 
-            if (!imagecursor.moveToPosition(position)) {
-                return imageView;
+        /**
+         * Selection changes and the end of a fling rebind with a payload, which
+         * only updates the selection state or requests the missing thumbnail
+         * instead of binding the whole cell again.
+         */
+        @Override
+        public void onBindViewHolder(ImageHolder holder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(holder, position);
+                return;
+            }
+            if (payloads.contains(PAYLOAD_SELECTION)) {
+                bindSelection(holder.imageView, position);
             }
+            if (payloads.contains(PAYLOAD_THUMBNAIL) && !holder.thumbRequested) {
+                bindThumbnail(holder, position);
+            }
+        }
 
-            if (image_column_index == -1) {
-                return imageView;
+        /**
+         * The previous image is left in place for fetch to replace, so that
+         * its pending decode is still found and cancelled.
+         */
+        @Override
+        public void onBindViewHolder(ImageHolder holder, int position) {
+            ImageView imageView = holder.imageView;
+            holder.thumbRequested = false;
+
+            bindSelection(imageView, position);
+            if (!bindThumbnail(holder, position)) {
+                // Requested once the fling settles, the old image must not show until then
+                fetcher.release(imageView);
             }
+        }
 
-            final int id = imagecursor.getInt(image_column_index);
-            final int rotate = imagecursor.getInt(image_column_orientation);
+        /**
+         * A cell waiting in the pool holds neither a decode nor a bitmap, so
+         * both can be reused while it is off screen.
+         */
+        @Override
+        public void onViewRecycled(ImageHolder holder) {
+            fetcher.release(holder.imageView);
+            holder.thumbRequested = false;
+        }
 
+        private void bindSelection(ImageView imageView, int position) {
             if (isChecked(position)) {
                 if (android.os.Build.VERSION.SDK_INT >= 16) {
                   imageView.setImageAlpha(128);
@@ -508,124 +1404,306 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
                 }
                 imageView.setBackgroundColor(Color.TRANSPARENT);
             }
+        }
+
+        /**
+         * @return Whether the thumbnail was requested.
+         */
+        private boolean bindThumbnail(ImageHolder holder, int position) {
+            if (!shouldRequestThumb || position >= index.size()) {
+                return false;
+            }
+
+            final int id = (int) index.getId(position);
+            final int rotate = index.getOrientation(position);
+            final long dateModified = index.getDateModified(position);
+
+            fetcher.fetch(id, holder.imageView, colWidth, rotate, dateModified);
+            holder.thumbRequested = true;
+            return true;
+        }
+    }
+
+    private class PageLoadTask extends AsyncTask<Void, Void, MediaIndex> {
+        private final MediaPager pager;
+        private final int limit;
+        private final boolean first;
+        private final Context context = getApplicationContext();
+
+        PageLoadTask(MediaPager pager, int limit, boolean first) {
+            this.pager = pager;
+            this.limit = limit;
+            this.first = first;
+        }
 
-            if (shouldRequestThumb) {
-                fetcher.fetch(id, imageView, colWidth, rotate);
+        @Override
+        protected MediaIndex doInBackground(Void... params) {
+            MediaIndex page = pager.nextPage(limit);
+            if (first && page != null) {
+                // Drawn by the next picker before its first page arrives
+                MediaSnapshot.write(context, page);
+            }
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(MediaIndex page) {
+            pageLoadTask = null;
+            if (pager == MultiImageChooserActivity.this.pager) {
+                if (mediaGeneration == -1) {
+                    mediaGeneration = pager.getGeneration();
+                }
+                onPageLoaded(page);
+            } else if (pager == albumPager) {
+                onAlbumPageLoaded(page);
+            }
+            // Otherwise the album was switched while it loaded, the page is dropped
+            loadPendingAlbums();
+            if (pendingJump != -1) {
+                jumpTo(pendingJump);
+            } else {
+                loadMoreIfNeeded();
             }
+        }
+    }
+
+    private class AlbumLoadTask extends AsyncTask<Void, Void, AlbumIndex> {
+        private final ContentResolver resolver = getContentResolver();
 
-            return imageView;
+        @Override
+        protected AlbumIndex doInBackground(Void... params) {
+            return AlbumIndex.query(resolver);
+        }
+
+        @Override
+        protected void onPostExecute(AlbumIndex result) {
+            albumLoadTask = null;
+            onAlbumsLoaded(result);
         }
     }
 
-    private class ResizeImagesTask extends AsyncTask<Set<Entry<String, Integer>>, Void, JSONArray> {
+    /**
+     * Lists all images first and then every album with its count. The drop
+     * down shows the album covers.
+     */
+    private class AlbumAdapter extends BaseAdapter {
+
+        public int getCount() {
+            return albums != null ? albums.size() + 1 : 1;
+        }
+
+        public Object getItem(int position) {
+            return position;
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView label = convertView instanceof TextView ? (TextView) convertView : createLabel();
+            label.setText(getLabel(position));
+            return label;
+        }
+
+        @Override
+        public View getDropDownView(int position, View convertView, ViewGroup parent) {
+            LinearLayout row = (LinearLayout) convertView;
+            if (row == null) {
+                int cover = Math.round(ALBUM_COVER_DP * getResources().getDisplayMetrics().density);
+                row = new LinearLayout(MultiImageChooserActivity.this);
+                row.setOrientation(LinearLayout.HORIZONTAL);
+                ImageView coverView = new ImageView(MultiImageChooserActivity.this);
+                coverView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                row.addView(coverView, new LinearLayout.LayoutParams(cover, cover));
+                row.addView(createLabel());
+            }
+
+            ImageView coverView = (ImageView) row.getChildAt(0);
+            ((TextView) row.getChildAt(1)).setText(getLabel(position));
+            if (position > 0 && albums != null) {
+                // Same id and size as the grid cell, so the cached thumbnail is shared
+                int album = position - 1;
+                fetcher.fetch((int) albums.getCoverId(album), coverView, colWidth,
+                        albums.getCoverOrientation(album), albums.getCoverDateModified(album));
+            } else {
+                coverView.setImageDrawable(null);
+            }
+            return row;
+        }
+
+        private TextView createLabel() {
+            int padding = Math.round(GRID_SPACING_DP * getResources().getDisplayMetrics().density);
+            TextView label = new TextView(MultiImageChooserActivity.this);
+            label.setPadding(padding, padding, padding, padding);
+            label.setSingleLine(true);
+            return label;
+        }
+
+        private String getLabel(int position) {
+            if (position == 0 || albums == null) {
+                String all = getString(fakeR.getId("string", "multi_image_picker_all_albums"));
+                return albums != null ? all + " (" + albums.getTotalCount() + ")" : all;
+            }
+            String name = albums.getName(position - 1);
+            return (name != null ? name : "") + " (" + albums.getCount(position - 1) + ")";
+        }
+    }
+
+    /**
+     * Fetches the rows behind a batch of MediaStore notifications: everything
+     * modified since the given generation on Android 11 and later, and the
+     * notified ids that scan did not return.
+     */
+    private class MediaDeltaTask extends AsyncTask<Void, Void, MediaIndex> {
+        private final long[] ids;
+        private final long[] deleted;
+        private final long sinceGeneration;
+        private final ContentResolver resolver;
+        private final Context context;
+        private long generation = -1;
+
+        MediaDeltaTask(long[] ids, long[] deleted, long sinceGeneration) {
+            this.ids = ids;
+            this.deleted = deleted;
+            this.sinceGeneration = sinceGeneration;
+            this.resolver = getContentResolver();
+            this.context = getApplicationContext();
+        }
+
+        @Override
+        protected MediaIndex doInBackground(Void... params) {
+            MediaIndex changed = new MediaIndex();
+            long[] lookup = ids;
+            if (sinceGeneration != -1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                // Read first, so nothing modified during the query is missed next time
+                generation = MediaPager.currentGeneration(context);
+                MediaIndex modified = MediaPager.queryModifiedSince(resolver, sinceGeneration);
+                if (modified != null) {
+                    changed.addAll(modified);
+                    lookup = withoutRows(ids, modified);
+                }
+            }
+            if (lookup.length > 0) {
+                changed.addAll(MediaPager.queryIds(resolver, lookup));
+            }
+            return changed;
+        }
+
+        /**
+         * @return The ids that are not among the rows, which need no second
+         *         query.
+         */
+        private long[] withoutRows(long[] ids, MediaIndex rows) {
+            HashSet<Long> found = new HashSet<Long>();
+            for (int i = 0; i < rows.size(); i++) {
+                found.add(rows.getId(i));
+            }
+            long[] rest = new long[ids.length];
+            int count = 0;
+            for (long id : ids) {
+                if (!found.contains(id)) {
+                    rest[count++] = id;
+                }
+            }
+            return Arrays.copyOf(rest, count);
+        }
+
+        @Override
+        protected void onPostExecute(MediaIndex changed) {
+            mediaDeltaTask = null;
+            if (generation != -1) {
+                mediaGeneration = generation;
+            }
+            onMediaDelta(changed, ids, deleted);
+            applyMediaChanges();
+        }
+    }
+
+    private class ResizeImagesTask extends AsyncTask<Void, Void, JSONArray> {
         private Exception asyncTaskError = null;
+        private final long[] ids;
+        private final int[] rotations;
+        private final Context context = getApplicationContext();
+        private int streamedCount;
+        // Set once an image failed, workers still running then send nothing more
+        private volatile boolean failed;
+
+        ResizeImagesTask(long[] ids, int[] rotations) {
+            this.ids = ids;
+            this.rotations = rotations;
+        }
 
+        /**
+         * Processes the images on one thread per core. Each image is planned
+         * against the whole memory budget, and admitted once the estimate of
+         * its bitmaps fits beside those already in flight, in selection order.
+         * Images that need most of the budget therefore run one at a time
+         * rather than being made smaller. Results are collected in selection
+         * order too.
+         */
         @Override
-        protected JSONArray doInBackground(Set<Entry<String, Integer>>... fileSets) {
-            Set<Entry<String, Integer>> fileNames = fileSets[0];
+        protected JSONArray doInBackground(Void... params) {
             ArrayList<String> al = new ArrayList<String>();
             JSONArray jsonResults = new JSONArray();
+            ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+            ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            final MemoryBudget budget = MemoryBudget.forBitmaps(context);
             try {
-                Iterator<Entry<String, Integer>> i = fileNames.iterator();
-                Bitmap bmp;
-                while (i.hasNext()) {
-                    Entry<String, Integer> imageInfo = i.next();
-                    File file = new File(imageInfo.getKey());
-                    int rotate = imageInfo.getValue();
+                Map<Long, String> paths = queryPaths(ids);
+                for (int n = 0; n < ids.length; n++) {
+                    String path = paths.get(ids[n]);
+                    if (path == null) {
+                        // Deleted since it was selected
+                        continue;
+                    }
+                    final File file = new File(path);
+                    final int rotate = rotations[n];
+                    final int position = n;
                     BitmapFactory.Options options = new BitmapFactory.Options();
                     options.inSampleSize = 1;
                     options.inJustDecodeBounds = true;
                     BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-                    int width = options.outWidth;
-                    int height = options.outHeight;
-                    float scale = calculateScale(width, height);
 
-                    if (scale < 1) {
-                        int finalWidth = (int)(width * scale);
-                        int finalHeight = (int)(height * scale);
-                        int inSampleSize = calculateInSampleSize(options, finalWidth, finalHeight);
-                        options = new BitmapFactory.Options();
-                        options.inSampleSize = inSampleSize;
-
-                        try {
-                            bmp = this.tryToGetBitmap(file, options, rotate, true);
-                        } catch (OutOfMemoryError e) {
-                            options.inSampleSize = calculateNextSampleSize(options.inSampleSize);
+                    // Sample size and config are fixed before any pixels are allocated
+                    float scale = calculateScale(options.outWidth, options.outHeight);
+                    // ImageDecoder applies the orientation while it decodes, but when it fails the
+                    // BitmapFactory fallback rotates a copy, so the copy is always planned for
+                    final DecodePlanner.Plan plan = DecodePlanner.plan(options, (int) (options.outWidth * scale),
+                            (int) (options.outHeight * scale), rotate != 0, budget.getCapacity());
+                    // Nothing to scale or re-encode, only the thumbnail is decoded
+                    final BitmapFactory.Options bounds = options;
+                    final boolean passThrough = canPassThrough(file, options, scale);
+                    final long bytes = passThrough ? passThroughBytes(options, rotate) : plan.getBytes();
+                    budget.acquire(bytes);
+                    pending.add(workers.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            Object item;
                             try {
-                                bmp = this.tryToGetBitmap(file, options, rotate, false);
-                            } catch (OutOfMemoryError e2) {
-                                throw new IOException("Unable to load image into memory.");
+                                item = passThrough
+                                        ? passThrough(file, bounds, rotate)
+                                        : processImage(file, plan, rotate);
+                            } finally {
+                                budget.release(bytes);
                             }
-                        }
-                    } else {
-                        try {
-                            bmp = this.tryToGetBitmap(file, null, rotate, false);
-                        } catch(OutOfMemoryError e) {
-                            options = new BitmapFactory.Options();
-                            options.inSampleSize = 2;
-
-                            try {
-                                bmp = this.tryToGetBitmap(file, options, rotate, false);
-                            } catch(OutOfMemoryError e2) {
-                                options = new BitmapFactory.Options();
-                                options.inSampleSize = 4;
-
-                                try {
-                                    bmp = this.tryToGetBitmap(file, options, rotate, false);
-                                } catch (OutOfMemoryError e3) {
-                                    throw new IOException("Unable to load image into memory.");
-                                }
+                            if (streamResults && !failed) {
+                                // Out of selection order, as soon as it is ready
+                                ResultStream.get().publish(position, item);
                             }
+                            return item;
                         }
-                    }
+                    }));
+                }
 
-                    // Create JSON object for enhanced format
-                    if (includeThumbnail) {
-                        try {
-                            JSONObject imageData = new JSONObject();
-                            
-                            // Store main image
-                            String imagePath;
-                            if (outputType == OutputType.FILE_URI) {
-                                file = storeImage(bmp, file.getName());
-                                imagePath = Uri.fromFile(file).toString();
-                            } else {
-                                imagePath = "data:image/jpeg;base64," + getBase64OfImage(bmp);
-                            }
-                            
-                            imageData.put("originalPath", imagePath);
-                            imageData.put("fileName", file.getName());
-                            imageData.put("fileSize", file.length());
-                            imageData.put("mimeType", "image/jpeg");
-                            imageData.put("width", bmp.getWidth());
-                            imageData.put("height", bmp.getHeight());
-                            
-                            // Generate thumbnail
-                            Bitmap thumbnail = Bitmap.createScaledBitmap(bmp, thumbnailWidth, thumbnailHeight, true);
-                            String thumbnailBase64 = getBase64OfImage(thumbnail);
-                            imageData.put("thumbnail", "data:image/jpeg;base64," + thumbnailBase64);
-                            imageData.put("thumbnailWidth", thumbnail.getWidth());
-                            imageData.put("thumbnailHeight", thumbnail.getHeight());
-                            thumbnail.recycle();
-                            
-                            jsonResults.put(imageData);
-                        } catch (JSONException e) {
-                            // Fall back to simple string format
-                            if (outputType == OutputType.FILE_URI) {
-                                file = storeImage(bmp, file.getName());
-                                al.add(Uri.fromFile(file).toString());
-                            } else {
-                                al.add(getBase64OfImage(bmp));
-                            }
-                        }
+                for (Future<Object> result : pending) {
+                    Object item = awaitResult(result);
+                    if (streamResults) {
+                        // Already sent, no need to hold on to it
+                        streamedCount++;
+                    } else if (item instanceof JSONObject) {
+                        jsonResults.put(item);
                     } else {
-                        // Legacy format - simple strings
-                        if (outputType == OutputType.FILE_URI) {
-                            file = storeImage(bmp, file.getName());
-                            al.add(Uri.fromFile(file).toString());
-                        } else if (outputType == OutputType.BASE64_STRING) {
-                            al.add(getBase64OfImage(bmp));
-                        }
+                        al.add((String) item);
                     }
                 }
                 
@@ -641,17 +1719,271 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
                     return legacyResults;
                 }
             } catch (IOException e) {
+                return fail(e, pending);
+            } catch (InterruptedException e) {
+                return fail(e, pending);
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        /**
+         * Stops the batch once an image failed: nothing more is streamed, the
+         * images still in flight are cancelled, and unless they were streamed
+         * the files already written are deleted.
+         */
+        private JSONArray fail(Exception e, ArrayList<Future<Object>> pending) {
+            asyncTaskError = e;
+            failed = true;
+            if (streamResults) {
+                // A worker past its check of failed may still be publishing
+                ResultStream.get().close();
+            }
+            for (Future<Object> result : pending) {
+                result.cancel(true);
+            }
+            if (!streamResults) {
+                // Streamed files belong to the app already
+                deleteOutputs(pending);
+            }
+            return new JSONArray();
+        }
+
+        /**
+         * Decodes, scales, rotates and stores one image.
+         *
+         * @return The enhanced result as a JSONObject, or the legacy result as
+         *         a String.
+         */
+        private Object processImage(File file, DecodePlanner.Plan plan, int rotate) throws IOException {
+            Bitmap bmp;
+            try {
+                bmp = this.tryToGetBitmap(file, plan, rotate);
+            } catch (OutOfMemoryError e) {
+                // The plan fit when it was admitted, something else took the memory since
+                throw new IOException("Unable to load image into memory.");
+            }
+
+            try {
+                return storeResult(file, bmp);
+            } finally {
+                // Free the pixels before the budget is released
+                bmp.recycle();
+            }
+        }
+
+        /**
+         * @return Whether the original file already is what the options ask
+         *         for: a JPEG that is not scaled, returned as a file and at
+         *         full quality, so re-encoding could only lose quality and
+         *         grow the file. Mirrored images are re-encoded, the
+         *         orientation the copy is written with only rotates. Before
+         *         Android 7 ExifInterface cannot remove tags, see
+         *         {@link #writeExif}.
+         */
+        private boolean canPassThrough(File file, BitmapFactory.Options bounds, float scale) {
+            return outputType == OutputType.FILE_URI
+                    && scale >= 1
+                    && quality >= 100
+                    && bounds.outWidth > 0
+                    && MIME_JPEG.equals(bounds.outMimeType)
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    && !isMirrored(file);
+        }
+
+        private boolean isMirrored(File file) {
+            int orientation;
+            try {
+                orientation = new ExifInterface(file.getAbsolutePath())
+                        .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            } catch (IOException e) {
+                // Unreadable here, the decode path reports it if it matters
+                return true;
+            }
+            return orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL
+                    || orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL
+                    || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                    || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+        }
+
+        /**
+         * @return The peak bytes of passing an image through: the sampled
+         *         decode of its thumbnail and the thumbnail, which are alive
+         *         together.
+         */
+        private long passThroughBytes(BitmapFactory.Options bounds, int rotate) {
+            if (!includeThumbnail) {
+                return 0;
+            }
+            int sampleSize = thumbnailSampleSize(bounds, rotate);
+            long decoded = (long) ((bounds.outWidth + sampleSize - 1) / sampleSize)
+                    * ((bounds.outHeight + sampleSize - 1) / sampleSize);
+            return (decoded + (long) thumbnailWidth * thumbnailHeight) * 4;
+        }
+
+        /**
+         * Copies the original file to the output location without decoding it.
+         * The rotation the image was selected with is carried by the EXIF
+         * orientation of the copy.
+         */
+        private Object passThrough(File file, BitmapFactory.Options bounds, int rotate) throws IOException {
+            File copy = copyImage(file);
+            writeExif(copy, rotate);
+            String imagePath = Uri.fromFile(copy).toString();
+            if (!includeThumbnail) {
+                return imagePath;
+            }
+
+            boolean swap = rotate % 180 != 0;
+            try {
+                JSONObject imageData = new JSONObject();
+                imageData.put("originalPath", imagePath);
+                imageData.put("fileName", copy.getName());
+                imageData.put("fileSize", copy.length());
+                imageData.put("mimeType", MIME_JPEG);
+                imageData.put("width", swap ? bounds.outHeight : bounds.outWidth);
+                imageData.put("height", swap ? bounds.outWidth : bounds.outHeight);
+
+                Bitmap thumbnail = decodeThumbnail(file, bounds, rotate);
+                imageData.put("thumbnail", "data:image/jpeg;base64," + getBase64OfImage(thumbnail));
+                imageData.put("thumbnailWidth", thumbnail.getWidth());
+                imageData.put("thumbnailHeight", thumbnail.getHeight());
+                thumbnail.recycle();
+                return imageData;
+            } catch (JSONException e) {
+                // Fall back to simple string format
+                return imagePath;
+            }
+        }
+
+        /**
+         * Decodes the thumbnail of the enhanced result from a sampled decode,
+         * in the same shape the full decode path gives it.
+         */
+        private Bitmap decodeThumbnail(File file, BitmapFactory.Options bounds, int rotate) throws IOException {
+            boolean swap = rotate % 180 != 0;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = thumbnailSampleSize(bounds, rotate);
+            Bitmap bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (bmp == null) {
+                throw new IOException("The image file could not be opened.");
+            }
+
+            Matrix matrix = new Matrix();
+            matrix.setRotate(rotate);
+            matrix.postScale(thumbnailWidth / (float) (swap ? bmp.getHeight() : bmp.getWidth()),
+                    thumbnailHeight / (float) (swap ? bmp.getWidth() : bmp.getHeight()));
+            Bitmap thumbnail = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+            if (thumbnail != bmp) {
+                bmp.recycle();
+            }
+            return thumbnail;
+        }
+
+        /**
+         * @return The largest power of two to sample the thumbnail's decode
+         *         by that still decodes at least the thumbnail size.
+         */
+        private int thumbnailSampleSize(BitmapFactory.Options bounds, int rotate) {
+            boolean swap = rotate % 180 != 0;
+            int width = swap ? bounds.outHeight : bounds.outWidth;
+            int height = swap ? bounds.outWidth : bounds.outHeight;
+            int sampleSize = 1;
+            while (width / (sampleSize * 2) >= thumbnailWidth && height / (sampleSize * 2) >= thumbnailHeight) {
+                sampleSize *= 2;
+            }
+            return sampleSize;
+        }
+
+        /**
+         * Stores or encodes the processed image as the options ask.
+         */
+        private Object storeResult(File file, Bitmap bmp) throws IOException {
+            // Create JSON object for enhanced format
+            if (includeThumbnail) {
                 try {
-                    asyncTaskError = e;
-                    for (int i = 0; i < al.size(); i++) {
-                        URI uri = new URI(al.get(i));
-                        File file = new File(uri);
-                        file.delete();
+                    JSONObject imageData = new JSONObject();
+                    
+                    // Store main image
+                    String imagePath;
+                    if (outputType == OutputType.FILE_URI) {
+                        file = storeImage(bmp, file.getName());
+                        imagePath = Uri.fromFile(file).toString();
+                    } else {
+                        imagePath = "data:image/jpeg;base64," + getBase64OfImage(bmp);
                     }
-                } catch (Exception ignore) {
+                    
+                    imageData.put("originalPath", imagePath);
+                    imageData.put("fileName", file.getName());
+                    imageData.put("fileSize", file.length());
+                    imageData.put("mimeType", "image/jpeg");
+                    imageData.put("width", bmp.getWidth());
+                    imageData.put("height", bmp.getHeight());
+                    
+                    // Generate thumbnail
+                    Bitmap thumbnail = Bitmap.createScaledBitmap(bmp, thumbnailWidth, thumbnailHeight, true);
+                    String thumbnailBase64 = getBase64OfImage(thumbnail);
+                    imageData.put("thumbnail", "data:image/jpeg;base64," + thumbnailBase64);
+                    imageData.put("thumbnailWidth", thumbnail.getWidth());
+                    imageData.put("thumbnailHeight", thumbnail.getHeight());
+                    thumbnail.recycle();
+                    
+                    return imageData;
+                } catch (JSONException e) {
+                    // Fall back to simple string format
+                    if (outputType == OutputType.FILE_URI) {
+                        file = storeImage(bmp, file.getName());
+                        return Uri.fromFile(file).toString();
+                    } else {
+                        return getBase64OfImage(bmp);
+                    }
+                }
+            } else {
+                // Legacy format - simple strings
+                if (outputType == OutputType.FILE_URI) {
+                    file = storeImage(bmp, file.getName());
+                    return Uri.fromFile(file).toString();
+                } else {
+                    return getBase64OfImage(bmp);
+                }
+            }
+        }
+
+        /**
+         * Waits for one image, rethrowing what failed it.
+         */
+        private Object awaitResult(Future<Object> result) throws IOException, InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof OutOfMemoryError) {
+                    throw new IOException("Unable to load image into memory.");
                 }
+                throw new IOException(String.valueOf(cause));
+            }
+        }
 
-                return new JSONArray();
+        /**
+         * Deletes the files written for the images that completed before the
+         * batch failed.
+         */
+        private void deleteOutputs(ArrayList<Future<Object>> results) {
+            for (Future<Object> result : results) {
+                if (!result.isDone() || result.isCancelled()) {
+                    continue;
+                }
+                try {
+                    Object item = result.get();
+                    String uri = item instanceof JSONObject
+                            ? ((JSONObject) item).optString("originalPath") : (String) item;
+                    if (uri != null && uri.startsWith("file:")) {
+                        new File(new URI(uri)).delete();
+                    }
+                } catch (Exception ignore) {
+                }
             }
         }
 
@@ -665,6 +1997,14 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
                 data.putExtras(res);
                 setResult(RESULT_CANCELED, data);
 
+            } else if (streamResults) {
+                // Every result went out as it was ready, only the count is left
+                Bundle res = new Bundle();
+                res.putInt("STREAMED_COUNT", streamedCount);
+                int sync = ResultIPC.get().setLargeData(res);
+                data.putExtra("bigdata:synccode", sync);
+                setResult(RESULT_OK, data);
+
             } else if (results.length() > 0) {
                 Bundle res = new Bundle();
                 
@@ -691,9 +2031,7 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
                     res.putStringArrayList("MULTIPLEFILENAMES", stringResults);
                 }
 
-                if (imagecursor != null) {
-                    res.putInt("TOTALFILES", imagecursor.getCount());
-                }
+                res.putInt("TOTALFILES", index.size());
 
                 int sync = ResultIPC.get().setLargeData(res);
                 data.putExtra("bigdata:synccode", sync);
@@ -707,35 +2045,75 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
             finish();
         }
 
+        /**
+         * Decodes the image straight to its final size, with one more bitmap
+         * for the rotation before Android 9.
+         */
         private Bitmap tryToGetBitmap(File file,
-                                      BitmapFactory.Options options,
-                                      int rotate,
-                                      boolean shouldScale) throws IOException, OutOfMemoryError {
-            Bitmap bmp;
-            if (options == null) {
-                bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
-            } else {
-                bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+                                      DecodePlanner.Plan plan,
+                                      int rotate) throws IOException, OutOfMemoryError {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                try {
+                    return decodeToTargetSize(file, plan);
+                } catch (IOException e) {
+                    // Not a format ImageDecoder knows, BitmapFactory may still
+                    Log.w(TAG, "ImageDecoder failed, falling back to BitmapFactory", e);
+                }
             }
 
-            if (bmp == null) {
-                throw new IOException("The image file could not be opened.");
+            BitmapFactory.Options options = plan.toOptions();
+            if (plan.getOutputWidth() < plan.getDecodedWidth()) {
+                // Scaled by the decoder from the sampled size to the target size
+                options.inScaled = true;
+                options.inDensity = plan.getDecodedWidth();
+                options.inTargetDensity = plan.getOutputWidth();
             }
+            Bitmap bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
 
-            if (options != null && shouldScale) {
-                float scale = calculateScale(options.outWidth, options.outHeight);
-                bmp = this.getResizedBitmap(bmp, scale);
+            if (bmp == null) {
+                throw new IOException("The image file could not be opened.");
             }
+            bmp.setDensity(Bitmap.DENSITY_NONE);
 
             if (rotate != 0) {
                 Matrix matrix = new Matrix();
                 matrix.setRotate(rotate);
-                bmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+                Bitmap rotated = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+                if (rotated != bmp) {
+                    bmp.recycle();
+                }
+                bmp = rotated;
             }
 
             return bmp;
         }
 
+        /**
+         * Decodes with ImageDecoder, which samples, scales and applies the EXIF
+         * orientation in the one decode.
+         */
+        @TargetApi(Build.VERSION_CODES.P)
+        private Bitmap decodeToTargetSize(File file, final DecodePlanner.Plan plan) throws IOException {
+            ImageDecoder.Source source = ImageDecoder.createSource(file);
+            return ImageDecoder.decodeBitmap(source, new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info,
+                        ImageDecoder.Source source) {
+                    // The size may already be rotated, the plan's scale works either way
+                    Size size = info.getSize();
+                    float scale = plan.getScale();
+                    if (scale < 1) {
+                        decoder.setTargetSize(Math.max(1, Math.round(size.getWidth() * scale)),
+                                Math.max(1, Math.round(size.getHeight() * scale)));
+                    }
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                    if (plan.getConfig() == Bitmap.Config.RGB_565) {
+                        decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+                    }
+                }
+            });
+        }
+
         /*
         * The following functions are originally from
         * https://github.com/raananw/PhoneGap-Image-Resizer
@@ -763,48 +2141,136 @@ public class MultiImageChooserActivity extends AppCompatActivity implements
             return file;
         }
 
-        private Bitmap getResizedBitmap(Bitmap bm, float factor) {
-            int width = bm.getWidth();
-            int height = bm.getHeight();
-            // create a matrix for the manipulation
-            Matrix matrix = new Matrix();
-            // resize the bit map
-            matrix.postScale(factor, factor);
-            // recreate the new Bitmap
-            return Bitmap.createBitmap(bm, 0, 0, width, height, matrix, false);
+        /**
+         * Copies the JPEG into a temporary file named like storeImage names
+         * them, letting the kernel move the bytes. XMP packets are left out,
+         * see {@link #copyHeaderWithoutXmp}.
+         */
+        private File copyImage(File source) throws IOException {
+            String fileName = source.getName();
+            int index = fileName.lastIndexOf('.');
+            String name = fileName.substring(0, index);
+            String ext = fileName.substring(index);
+            File file = File.createTempFile("tmp_" + name, ext);
+
+            FileInputStream in = new FileInputStream(source);
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                FileChannel from = in.getChannel();
+                FileChannel to = out.getChannel();
+                long position = copyHeaderWithoutXmp(from, to);
+                transfer(from, position, from.size() - position, to);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            } finally {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+            }
+            return file;
         }
 
-       private String getBase64OfImage(Bitmap bm) {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            bm.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
-            byte[] byteArray = byteArrayOutputStream.toByteArray();
-            return Base64.encodeToString(byteArray, Base64.NO_WRAP);
+        /**
+         * Copies the segments of a JPEG that come before its image data,
+         * except the APP1 segments holding XMP. Editors often copy the
+         * location into XMP, and ExifInterface only rewrites the Exif
+         * segment, so the packet would keep what {@link #writeExif} removes.
+         *
+         * @return The position of the image data, from which the file is
+         *         copied as is.
+         */
+        private long copyHeaderWithoutXmp(FileChannel from, FileChannel to) throws IOException {
+            long size = from.size();
+            // Start of image
+            transfer(from, 0, 2, to);
+            long position = 2;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (position + header.capacity() <= size) {
+                header.clear();
+                read(from, header, position);
+                int marker = header.get(1) & 0xff;
+                if ((header.get(0) & 0xff) != 0xff || marker == JPEG_START_OF_SCAN || marker == JPEG_END_OF_IMAGE) {
+                    break;
+                }
+                // The length counts itself but not the marker
+                long length = 2 + (header.getShort(2) & 0xffff);
+                if (marker != JPEG_APP1 || !isXmp(from, position + header.capacity(), length - header.capacity())) {
+                    transfer(from, position, Math.min(length, size - position), to);
+                }
+                position += length;
+            }
+            return Math.min(position, size);
         }
-    }
 
-    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+        private boolean isXmp(FileChannel channel, long position, long length) throws IOException {
+            for (byte[] signature : XMP_SIGNATURES) {
+                if (length >= signature.length) {
+                    ByteBuffer bytes = ByteBuffer.allocate(signature.length);
+                    read(channel, bytes, position);
+                    if (Arrays.equals(bytes.array(), signature)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
 
-        if (height > reqHeight || width > reqWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
+        private void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of JPEG");
+                }
+            }
+        }
 
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
+        private void transfer(FileChannel from, long position, long count, FileChannel to) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                position += from.transferTo(position, end - position, to);
             }
         }
 
-        return inSampleSize;
-    }
+        /**
+         * Rewrites the EXIF of a JPEG copied as is, the pixels are not
+         * touched: sets the orientation it was selected with, and removes the
+         * location and the tags that identify the device or its owner, which
+         * a re-encoded image never had. The XMP packet was already left out
+         * by {@link #copyImage}. Tags can only be removed from Android 7,
+         * before it saving a removed tag fails.
+         */
+        private void writeExif(File file, int rotate) throws IOException {
+            int orientation;
+            switch (rotate) {
+                case 90:
+                    orientation = ExifInterface.ORIENTATION_ROTATE_90;
+                    break;
+                case 180:
+                    orientation = ExifInterface.ORIENTATION_ROTATE_180;
+                    break;
+                case 270:
+                    orientation = ExifInterface.ORIENTATION_ROTATE_270;
+                    break;
+                default:
+                    orientation = ExifInterface.ORIENTATION_NORMAL;
+                    break;
+            }
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+            for (String tag : STRIPPED_EXIF_TAGS) {
+                exif.setAttribute(tag, null);
+            }
+            exif.saveAttributes();
+        }
 
-    private int calculateNextSampleSize(int sampleSize) {
-        double logBaseTwo = (int)(Math.log(sampleSize) / Math.log(2));
-        return (int)Math.pow(logBaseTwo + 1, 2);
+       private String getBase64OfImage(Bitmap bm) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            bm.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
+            byte[] byteArray = byteArrayOutputStream.toByteArray();
+            return Base64.encodeToString(byteArray, Base64.NO_WRAP);
+        }
     }
 
     private float calculateScale(int width, int height) {
@@ -0,0 +1,188 @@
+package com.synconset;
+
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Reads the first page of the picker and decodes the thumbnails of its first
+ * screen before the picker is opened, so that its first frame shows a full
+ * grid.
+ *
+ * <p>
+ * The result is held once per process and handed to the next picker that is
+ * opened with the same cell size and pixel format. It is dropped after a
+ * minute, or as soon as the system asks the application to trim memory;
+ * changes MediaStore makes in between are caught by the picker's generation
+ * check on Android 11 and later.
+ * </p>
+ */
+public class PickerPreloader {
+
+    // A preload older than this is read again by the picker
+    private static final long MAX_AGE_MS = 60 * 1000;
+
+    private static Preload preload;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable expire = new Runnable() {
+        @Override
+        public void run() {
+            clear();
+        }
+    };
+    private static final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                clear();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            clear();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+    private static boolean callbacksRegistered;
+
+    /**
+     * What a preload read: the pager positioned after the first page, the
+     * page, and the thumbnails of its first screen.
+     */
+    public static class Preload {
+        private final MediaPager pager;
+        private final MediaIndex page;
+        private final Bitmap[] thumbnails;
+        private final int cellSize;
+        private final Bitmap.Config config;
+        private final long createdAt = SystemClock.elapsedRealtime();
+
+        private Preload(MediaPager pager, MediaIndex page, Bitmap[] thumbnails, int cellSize,
+                Bitmap.Config config) {
+            this.pager = pager;
+            this.page = page;
+            this.thumbnails = thumbnails;
+            this.cellSize = cellSize;
+            this.config = config;
+        }
+
+        public MediaPager getPager() {
+            return pager;
+        }
+
+        public MediaIndex getPage() {
+            return page;
+        }
+
+        /**
+         * @return The number of leading images of the page with a thumbnail.
+         */
+        public int getThumbnailCount() {
+            return thumbnails.length;
+        }
+
+        /**
+         * @return The thumbnail of the image at the position in the page, or
+         *         null if it could not be decoded.
+         */
+        public Bitmap getThumbnail(int position) {
+            return thumbnails[position];
+        }
+    }
+
+    /**
+     * Preloads the picker as it would be laid out in the given activity's
+     * window. Does I/O and blocks, call it off the main thread. Read
+     * permission must have been granted.
+     *
+     * @param pixelFormat
+     *            The gridPixelFormat option the picker will be opened with.
+     */
+    public static void preload(Activity activity, String pixelFormat) {
+        Rect window = MultiImageChooserActivity.getWindowBounds(activity);
+        int columns = MultiImageChooserActivity.getGridColumns(activity, window.width());
+        int cellSize = MultiImageChooserActivity.getColumnWidth(activity, window.width(), columns);
+        int rows = window.height() / Math.max(1, cellSize + MultiImageChooserActivity.getGridSpacing(activity)) + 1;
+        preload(activity, cellSize, rows * columns, ThumbnailLoader.chooseConfig(activity, pixelFormat));
+    }
+
+    /**
+     * @param count
+     *            The number of thumbnails to decode, those of the first screen.
+     */
+    public static void preload(Context context, int cellSize, int count, Bitmap.Config config) {
+        Context appContext = context.getApplicationContext();
+        MediaPager pager = new MediaPager(appContext);
+        MediaIndex page = pager.nextPage(MultiImageChooserActivity.FIRST_PAGE_SIZE);
+        if (page == null) {
+            return;
+        }
+
+        // Nothing to reuse buffers from, the thumbnails go to the picker's cache
+        ThumbnailLoader loader = new ThumbnailLoader(appContext, ThumbnailDiskCache.get(appContext),
+                new BitmapPool(0), config);
+        Bitmap[] thumbnails = new Bitmap[Math.min(count, page.size())];
+        for (int i = 0; i < thumbnails.length; i++) {
+            thumbnails[i] = loader.load(page.getId(i), page.getDateModified(i), cellSize, null);
+        }
+
+        synchronized (PickerPreloader.class) {
+            recycle(preload);
+            preload = new Preload(pager, page, thumbnails, cellSize, config);
+            if (!callbacksRegistered) {
+                appContext.registerComponentCallbacks(memoryCallbacks);
+                callbacksRegistered = true;
+            }
+        }
+        handler.removeCallbacks(expire);
+        handler.postDelayed(expire, MAX_AGE_MS);
+    }
+
+    /**
+     * Drops the preload that was not taken, and frees its thumbnails.
+     */
+    public static synchronized void clear() {
+        recycle(preload);
+        preload = null;
+    }
+
+    // Nothing else holds the thumbnails of a preload that was not taken
+    private static void recycle(Preload preload) {
+        if (preload == null) {
+            return;
+        }
+        for (Bitmap thumbnail : preload.thumbnails) {
+            if (thumbnail != null) {
+                thumbnail.recycle();
+            }
+        }
+    }
+
+    /**
+     * Hands the preload over to a picker. Each preload is taken once.
+     *
+     * @return The preload, or null if there is none, it is too old, or it was
+     *         made for another cell size or pixel format.
+     */
+    public static synchronized Preload take(int cellSize, Bitmap.Config config) {
+        Preload result = preload;
+        preload = null;
+        if (result == null || SystemClock.elapsedRealtime() - result.createdAt > MAX_AGE_MS
+                || result.cellSize != cellSize || result.config != config) {
+            recycle(result);
+            return null;
+        }
+        return result;
+    }
+}
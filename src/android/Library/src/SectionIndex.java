@@ -0,0 +1,105 @@
+package com.synconset;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Month sections of a {@link MediaIndex}, stored as the position of the first
+ * image of each month.
+ *
+ * <p>
+ * The index is sorted newest first by DATE_MODIFIED, so a section starts
+ * wherever a row is older than the start of the month of the previous
+ * section. Calendar math is only done once per section, which keeps a pass
+ * over 100k rows to a few array reads per row. Rows can be appended as pages
+ * arrive; after any other change the sections are rebuilt.
+ * </p>
+ */
+public class SectionIndex {
+
+    private int[] offsets = new int[16];
+    // Start of each month in seconds, like DATE_MODIFIED
+    private long[] monthStarts = new long[16];
+    private int size;
+    private int rows;
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The position of the first image of the section.
+     */
+    public int getOffset(int section) {
+        return offsets[section];
+    }
+
+    /**
+     * @return The start of the section's month, in seconds since the epoch.
+     */
+    public long getMonthStart(int section) {
+        return monthStarts[section];
+    }
+
+    /**
+     * @return The section holding the image at the given position, or -1 if
+     *         there are no sections.
+     */
+    public int sectionForPosition(int position) {
+        if (size == 0) {
+            return -1;
+        }
+        int found = Arrays.binarySearch(offsets, 0, size, position);
+        return found >= 0 ? found : Math.max(0, -found - 2);
+    }
+
+    public void clear() {
+        size = 0;
+        rows = 0;
+    }
+
+    /**
+     * Drops all sections and builds them again from the whole index.
+     */
+    public void rebuild(MediaIndex index) {
+        clear();
+        append(index);
+    }
+
+    /**
+     * Adds the sections of the rows appended to the index since the last call.
+     */
+    public void append(MediaIndex index) {
+        long monthStart = size > 0 ? monthStarts[size - 1] : Long.MAX_VALUE;
+        for (int i = rows; i < index.size(); i++) {
+            long date = index.getDateModified(i);
+            if (date < monthStart) {
+                monthStart = monthStartOf(date);
+                add(i, monthStart);
+            }
+        }
+        rows = index.size();
+    }
+
+    private void add(int offset, long monthStart) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            monthStarts = Arrays.copyOf(monthStarts, size * 2);
+        }
+        offsets[size] = offset;
+        monthStarts[size] = monthStart;
+        size++;
+    }
+
+    private long monthStartOf(long seconds) {
+        calendar.setTimeInMillis(seconds * 1000);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis() / 1000;
+    }
+}
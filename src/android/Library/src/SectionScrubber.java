@@ -0,0 +1,166 @@
+package com.synconset;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Fast scroll handle drawn along the right edge of the grid.
+ *
+ * <p>
+ * The view covers the grid but only takes touches that start on the handle's
+ * strip, everything else falls through to the grid. While the handle is
+ * dragged a bubble shows the label of the section under it. The view only
+ * reports fractions of its height; mapping them to sections and positions is
+ * up to the listener.
+ * </p>
+ */
+public class SectionScrubber extends View {
+
+    public interface OnScrubListener {
+        void onScrubStart();
+
+        void onScrub(float fraction);
+
+        void onScrubEnd();
+    }
+
+    private static final int HANDLE_WIDTH_DP = 8;
+    private static final int HANDLE_HEIGHT_DP = 48;
+    private static final int TOUCH_WIDTH_DP = 32;
+    private static final int BUBBLE_PADDING_DP = 12;
+    private static final int TEXT_SIZE_SP = 16;
+
+    private final float density;
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint bubblePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF rect = new RectF();
+
+    private OnScrubListener listener;
+    private float position;
+    private String label;
+    private boolean dragging;
+
+    public SectionScrubber(Context context) {
+        this(context, null);
+    }
+
+    public SectionScrubber(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        density = context.getResources().getDisplayMetrics().density;
+        setColor(0xff32b2e1);
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(TEXT_SIZE_SP * context.getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setColor(int color) {
+        handlePaint.setColor(color);
+        bubblePaint.setColor(color);
+        invalidate();
+    }
+
+    public void setOnScrubListener(OnScrubListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Moves the handle, e.g. as the grid scrolls. Ignored while dragging.
+     *
+     * @param fraction
+     *            0 for the top, 1 for the bottom.
+     */
+    public void setPosition(float fraction) {
+        if (dragging) {
+            return;
+        }
+        position = clamp(fraction);
+        invalidate();
+    }
+
+    /**
+     * Sets the text of the bubble shown while dragging.
+     */
+    public void setLabel(String label) {
+        this.label = label;
+        invalidate();
+    }
+
+    public boolean isDragging() {
+        return dragging;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (event.getX() < getWidth() - TOUCH_WIDTH_DP * density) {
+                    return false;
+                }
+                dragging = true;
+                getParent().requestDisallowInterceptTouchEvent(true);
+                if (listener != null) {
+                    listener.onScrubStart();
+                }
+                scrubTo(event.getY());
+                return true;
+
+            case MotionEvent.ACTION_MOVE:
+                if (dragging) {
+                    scrubTo(event.getY());
+                }
+                return dragging;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (dragging) {
+                    dragging = false;
+                    invalidate();
+                    if (listener != null) {
+                        listener.onScrubEnd();
+                    }
+                    return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
+    private void scrubTo(float y) {
+        position = clamp(y / Math.max(1, getHeight()));
+        invalidate();
+        if (listener != null) {
+            listener.onScrub(position);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float handleHeight = HANDLE_HEIGHT_DP * density;
+        float top = position * (getHeight() - handleHeight);
+        float right = getWidth();
+        rect.set(right - HANDLE_WIDTH_DP * density, top, right, top + handleHeight);
+        canvas.drawRoundRect(rect, rect.width() / 2, rect.width() / 2, handlePaint);
+
+        if (dragging && label != null) {
+            float padding = BUBBLE_PADDING_DP * density;
+            float textWidth = textPaint.measureText(label);
+            Paint.FontMetrics metrics = textPaint.getFontMetrics();
+            float bubbleHeight = metrics.descent - metrics.ascent + padding * 2;
+            float bubbleRight = rect.left - padding;
+            float bubbleTop = Math.max(0, top + handleHeight / 2 - bubbleHeight / 2);
+            rect.set(bubbleRight - textWidth - padding * 2, bubbleTop, bubbleRight, bubbleTop + bubbleHeight);
+            canvas.drawRoundRect(rect, padding, padding, bubblePaint);
+            canvas.drawText(label, rect.left + padding, rect.top + padding - metrics.ascent, textPaint);
+        }
+    }
+
+    private static float clamp(float fraction) {
+        return Math.max(0f, Math.min(1f, fraction));
+    }
+}
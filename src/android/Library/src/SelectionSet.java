@@ -0,0 +1,229 @@
+package com.synconset;
+
+import java.util.Arrays;
+
+import android.os.Bundle;
+
+/**
+ * The selected images, keyed by MediaStore <code>_ID</code> and kept in the
+ * order they were picked, each with its rotation.
+ *
+ * <p>
+ * Ids are kept in primitive arrays: entries are appended in selection order
+ * and found through an open addressing table of entry numbers, so a lookup
+ * while binding a cell neither allocates nor boxes. Removed entries are left
+ * as holes and compacted once they make up half of the entries.
+ * </p>
+ *
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class SelectionSet {
+
+    private static final long REMOVED = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    // Entries in selection order, with holes where entries were removed
+    private long[] ids;
+    private int[] rotations;
+    private int count;
+    private int size;
+
+    // Entry number + 1 by hash of the id, 0 for a free slot
+    private int[] table;
+
+    public SelectionSet() {
+        ids = new long[MIN_CAPACITY];
+        rotations = new int[MIN_CAPACITY];
+        table = new int[MIN_CAPACITY * 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long id) {
+        return table[find(id)] != 0;
+    }
+
+    /**
+     * @return The rotation the image was selected with, 0 if it is not
+     *         selected.
+     */
+    public int getRotation(long id) {
+        int entry = table[find(id)];
+        return entry != 0 ? rotations[entry - 1] : 0;
+    }
+
+    /**
+     * Adds the image at the end of the selection order.
+     *
+     * @return False if it was already selected.
+     */
+    public boolean add(long id, int rotation) {
+        int slot = find(id);
+        if (table[slot] != 0) {
+            return false;
+        }
+        if (count == ids.length) {
+            if (size < count / 2) {
+                compact();
+            } else {
+                ids = Arrays.copyOf(ids, count * 2);
+                rotations = Arrays.copyOf(rotations, count * 2);
+                rehash(count * 4);
+            }
+            slot = find(id);
+        }
+        ids[count] = id;
+        rotations[count] = rotation;
+        count++;
+        size++;
+        table[slot] = count;
+        return true;
+    }
+
+    /**
+     * @return False if the image was not selected.
+     */
+    public boolean remove(long id) {
+        int slot = find(id);
+        if (table[slot] == 0) {
+            return false;
+        }
+        ids[table[slot] - 1] = REMOVED;
+        size--;
+        deleteSlot(slot);
+        return true;
+    }
+
+    public void clear() {
+        count = 0;
+        size = 0;
+        Arrays.fill(table, 0);
+    }
+
+    /**
+     * @return The selected ids in selection order.
+     */
+    public long[] getIds() {
+        long[] result = new long[size];
+        for (int i = 0, j = 0; i < count; i++) {
+            if (ids[i] != REMOVED) {
+                result[j++] = ids[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The rotations of the selected ids, in the same order as
+     *         {@link #getIds()}.
+     */
+    public int[] getRotations() {
+        int[] result = new int[size];
+        for (int i = 0, j = 0; i < count; i++) {
+            if (ids[i] != REMOVED) {
+                result[j++] = rotations[i];
+            }
+        }
+        return result;
+    }
+
+    public void saveTo(Bundle bundle, String key) {
+        bundle.putLongArray(key + ".ids", getIds());
+        bundle.putIntArray(key + ".rotations", getRotations());
+    }
+
+    /**
+     * Replaces the selection with one saved by {@link #saveTo}, if the bundle
+     * holds one.
+     */
+    public void restoreFrom(Bundle bundle, String key) {
+        long[] savedIds = bundle.getLongArray(key + ".ids");
+        int[] savedRotations = bundle.getIntArray(key + ".rotations");
+        if (savedIds == null || savedRotations == null || savedIds.length != savedRotations.length) {
+            return;
+        }
+        clear();
+        for (int i = 0; i < savedIds.length; i++) {
+            add(savedIds[i], savedRotations[i]);
+        }
+    }
+
+    /**
+     * @return The slot holding the id, or the free slot where it would go.
+     */
+    private int find(long id) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0 && ids[table[slot] - 1] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Frees a slot and moves later entries of the same probe run back, so
+     * lookups never need tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0) {
+                break;
+            }
+            int home = hash(entryId(table[next])) & mask;
+            // Move the entry back unless its home lies cyclically in (slot, next]
+            if ((next > slot && (home <= slot || home > next)) || (next < slot && home <= slot && home > next)) {
+                table[slot] = table[next];
+                slot = next;
+            }
+        }
+        table[slot] = 0;
+    }
+
+    private long entryId(int entry) {
+        return ids[entry - 1];
+    }
+
+    private void compact() {
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (ids[i] != REMOVED) {
+                ids[j] = ids[i];
+                rotations[j] = rotations[i];
+                j++;
+            }
+        }
+        count = j;
+        rehash(table.length);
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == REMOVED) {
+                continue;
+            }
+            int slot = hash(ids[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,214 @@
+package com.synconset;
+
+import java.util.Collection;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.LruCache;
+
+/**
+ * Memory cache for the thumbnails shown in the picker grid.
+ *
+ * <p>
+ * Both tiers are bounded in bytes rather than in entries, so a screen full of
+ * large thumbnails on a tablet costs the same budget as a screen of small ones
+ * on a phone. The primary tier is a strict LRU sized as a fraction of
+ * {@link ActivityManager#getMemoryClass()}. Entries it evicts are moved into an
+ * optional second tier with its own byte budget, which is also a strict LRU.
+ * Neither tier depends on the garbage collector, so the hit rate is the same
+ * no matter when a GC happens.
+ * </p>
+ */
+public class ThumbnailCache {
+
+    /** Share of the memory class given to the primary tier. */
+    public static final float DEFAULT_PRIMARY_FRACTION = 1f / 8;
+
+    /** Share of the memory class given to the second tier, 0 to disable it. */
+    public static final float DEFAULT_SECONDARY_FRACTION = 1f / 16;
+
+    /**
+     * Notified on the calling thread when a bitmap leaves the cache for good,
+     * that is, it is not merely moved from one tier to the other.
+     */
+    public interface OnEvictedListener {
+        void onEvicted(Integer id, Bitmap bitmap);
+    }
+
+    private final LruCache<Integer, Bitmap> primary;
+    private final LruCache<Integer, Bitmap> secondary;
+    private OnEvictedListener onEvictedListener;
+
+    public ThumbnailCache(Context context) {
+        this(context, DEFAULT_PRIMARY_FRACTION, DEFAULT_SECONDARY_FRACTION);
+    }
+
+    public ThumbnailCache(Context context, float primaryFraction, float secondaryFraction) {
+        this(budgetFor(context, primaryFraction), budgetFor(context, secondaryFraction));
+    }
+
+    public ThumbnailCache(int primaryBytes, int secondaryBytes) {
+        secondary = secondaryBytes > 0 ? new BitmapLruCache(secondaryBytes, null) : null;
+        primary = new BitmapLruCache(Math.max(1, primaryBytes), secondary);
+    }
+
+    public void setOnEvictedListener(OnEvictedListener listener) {
+        onEvictedListener = listener;
+    }
+
+    /**
+     * @return The number of bytes that make up the given fraction of the
+     *         application's memory class.
+     */
+    public static int budgetFor(Context context, float fraction) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = am != null ? am.getMemoryClass() : 16;
+        return (int) (memoryClass * 1024L * 1024L * fraction);
+    }
+
+    /**
+     * @return The size of the bitmap's backing allocation, which can be larger
+     *         than its visible pixels once buffers are reused.
+     */
+    public static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    public void put(Integer id, Bitmap bitmap) {
+        if (id == null || bitmap == null) {
+            return;
+        }
+        if (secondary != null) {
+            Bitmap old = secondary.remove(id);
+            if (old != null && old != bitmap) {
+                dispatchEvicted(id, old);
+            }
+        }
+        primary.put(id, bitmap);
+    }
+
+    /**
+     * Looks the bitmap up in the primary tier and then in the second tier. A
+     * second tier hit is promoted back to the primary tier.
+     */
+    public Bitmap get(Integer id) {
+        if (id == null) {
+            return null;
+        }
+        Bitmap bitmap = primary.get(id);
+        if (bitmap == null && secondary != null) {
+            bitmap = secondary.remove(id);
+            if (bitmap != null) {
+                primary.put(id, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drops the entry of the given image from both tiers, e.g. because the
+     * image changed.
+     */
+    public void remove(Integer id) {
+        if (id == null) {
+            return;
+        }
+        Bitmap bitmap = primary.remove(id);
+        if (bitmap == null && secondary != null) {
+            bitmap = secondary.remove(id);
+        }
+        if (bitmap != null) {
+            dispatchEvicted(id, bitmap);
+        }
+    }
+
+    public void evictAll() {
+        primary.evictAll();
+        if (secondary != null) {
+            secondary.evictAll();
+        }
+    }
+
+    /**
+     * Shrinks both tiers to the given fraction of their budget, evicting the
+     * least recently used entries. The budgets themselves are unchanged.
+     */
+    public void trimToFraction(float fraction) {
+        primary.trimToSize((int) (primary.maxSize() * fraction));
+        if (secondary != null) {
+            secondary.trimToSize((int) (secondary.maxSize() * fraction));
+        }
+    }
+
+    /**
+     * Evicts every entry whose bitmap is not in the given collection, e.g.
+     * everything that is not on screen.
+     */
+    public void evictAllExcept(Collection<Bitmap> keep) {
+        evictAllExcept(primary, keep);
+        if (secondary != null) {
+            evictAllExcept(secondary, keep);
+        }
+    }
+
+    private void evictAllExcept(LruCache<Integer, Bitmap> tier, Collection<Bitmap> keep) {
+        for (Map.Entry<Integer, Bitmap> entry : tier.snapshot().entrySet()) {
+            if (!keep.contains(entry.getValue()) && tier.remove(entry.getKey()) != null) {
+                dispatchEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return Bytes currently held by both tiers.
+     */
+    public int size() {
+        return primary.size() + (secondary != null ? secondary.size() : 0);
+    }
+
+    /**
+     * @return Byte budget of both tiers together.
+     */
+    public int maxSize() {
+        return primary.maxSize() + (secondary != null ? secondary.maxSize() : 0);
+    }
+
+    private void dispatchEvicted(Integer id, Bitmap bitmap) {
+        OnEvictedListener listener = onEvictedListener;
+        if (listener != null) {
+            listener.onEvicted(id, bitmap);
+        }
+    }
+
+    private class BitmapLruCache extends LruCache<Integer, Bitmap> {
+        private final LruCache<Integer, Bitmap> spillover;
+
+        BitmapLruCache(int maxBytes, LruCache<Integer, Bitmap> spillover) {
+            super(maxBytes);
+            this.spillover = spillover;
+        }
+
+        @Override
+        protected int sizeOf(Integer key, Bitmap value) {
+            return ThumbnailCache.sizeOf(value);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue, Bitmap newValue) {
+            // Entries pushed out by the budget move down a tier. Explicit
+            // removals either move an entry between tiers or report the
+            // eviction themselves, so only replacements leave the cache here.
+            if (evicted && spillover != null) {
+                spillover.put(key, oldValue);
+            } else if (evicted || (newValue != null && newValue != oldValue)) {
+                dispatchEvicted(key, oldValue);
+            }
+        }
+    }
+}
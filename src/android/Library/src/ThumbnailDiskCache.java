@@ -0,0 +1,267 @@
+package com.synconset;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Persistent LRU cache of grid thumbnails in the application's cache
+ * directory.
+ *
+ * <p>
+ * Each entry is stored as a lossy WebP file named after the MediaStore
+ * <code>_ID</code> and <code>DATE_MODIFIED</code> of the image and the edge
+ * of the thumbnail, so an image that is edited after its thumbnail was
+ * written no longer matches and is dropped on the next lookup, and a larger
+ * thumbnail of the same image replaces a smaller one. The total size on disk is kept under a quota by
+ * deleting the least recently used files. File modification times record the
+ * access order, so it survives the process.
+ * </p>
+ *
+ * <p>
+ * All methods do I/O and must be called off the main thread.
+ * </p>
+ */
+public class ThumbnailDiskCache {
+
+    private static final String TAG = "ImagePicker";
+    private static final String DIR_NAME = "imagepicker-thumbs";
+    private static final String EXTENSION = ".webp";
+    private static final int QUALITY = 80;
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static ThumbnailDiskCache instance;
+
+    public synchronized static ThumbnailDiskCache get(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), DIR_NAME);
+            instance = new ThumbnailDiskCache(dir, DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Keyed by _ID, in access order
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+    private long size;
+    private boolean initialized;
+
+    public ThumbnailDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param pool
+     *            Optional pool to decode into.
+     * @param config
+     *            Preferred config of the decoded bitmap, may be null.
+     * @return The cached thumbnail, or null if there is none or the image has
+     *         been modified since it was stored.
+     */
+    public Bitmap get(long id, long dateModified, BitmapPool pool, Bitmap.Config config) {
+        File file;
+        synchronized (this) {
+            ensureInitialized();
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.dateModified != dateModified) {
+                remove(id, entry);
+                return null;
+            }
+            file = entry.file;
+        }
+
+        Bitmap bitmap;
+        if (pool != null) {
+            bitmap = pool.decodeFile(file.getAbsolutePath(), config);
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (config != null) {
+                options.inPreferredConfig = config;
+            }
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        if (bitmap == null) {
+            synchronized (this) {
+                Entry entry = entries.get(id);
+                if (entry != null && entry.file.equals(file)) {
+                    remove(id, entry);
+                }
+            }
+        } else {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores the thumbnail unless one at least as large is already stored for
+     * the same version of the image.
+     */
+    public void put(long id, long dateModified, Bitmap bitmap) {
+        int edge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        File file = new File(directory, id + "_" + dateModified + "_" + edge + EXTENSION);
+        File tmp = new File(directory, file.getName() + ".tmp");
+
+        synchronized (this) {
+            ensureInitialized();
+            Entry entry = entries.get(id);
+            if (entry != null && entry.dateModified == dateModified && entry.edge >= edge) {
+                return;
+            }
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (!bitmap.compress(compressFormat(), QUALITY, out)) {
+                throw new IOException("Unable to encode thumbnail " + id);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to store thumbnail " + id);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail disk cache write failed", e);
+            tmp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        synchronized (this) {
+            Entry old = entries.get(id);
+            if (old != null && !old.file.equals(file)) {
+                remove(id, old);
+            } else if (old != null) {
+                size -= old.length;
+            }
+            Entry entry = new Entry(file, dateModified, edge, file.length());
+            entries.put(id, entry);
+            size += entry.length;
+            trimToSize(maxBytes);
+        }
+    }
+
+    public synchronized void clear() {
+        ensureInitialized();
+        trimToSize(0);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+        }
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    private void remove(long id, Entry entry) {
+        entries.remove(id);
+        size -= entry.length;
+        entry.file.delete();
+    }
+
+    private void trimToSize(long bytes) {
+        Iterator<Map.Entry<Long, Entry>> i = entries.entrySet().iterator();
+        while (size > bytes && i.hasNext()) {
+            Entry eldest = i.next().getValue();
+            i.remove();
+            size -= eldest.length;
+            eldest.file.delete();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the files left by earlier runs, oldest access
+     * first, and deletes anything that is not a complete entry.
+     */
+    private void ensureInitialized() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create thumbnail cache in " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long la = a.lastModified();
+                long lb = b.lastModified();
+                return la < lb ? -1 : (la > lb ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            String[] parts = name.substring(0, Math.max(0, name.length() - EXTENSION.length())).split("_");
+            if (!name.endsWith(EXTENSION) || parts.length < 2 || parts.length > 3) {
+                file.delete();
+                continue;
+            }
+            try {
+                long id = Long.parseLong(parts[0]);
+                long dateModified = Long.parseLong(parts[1]);
+                // Written before the edge was recorded, replaced by the next put
+                int edge = parts.length == 3 ? Integer.parseInt(parts[2]) : 0;
+                Entry old = entries.get(id);
+                if (old != null) {
+                    remove(id, old);
+                }
+                Entry entry = new Entry(file, dateModified, edge, file.length());
+                entries.put(id, entry);
+                size += entry.length;
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        trimToSize(maxBytes);
+    }
+
+    private static class Entry {
+        final File file;
+        final long dateModified;
+        // Larger dimension of the thumbnail, in pixels
+        final int edge;
+        final long length;
+
+        Entry(File file, long dateModified, int edge, long length) {
+            this.file = file;
+            this.dateModified = dateModified;
+            this.edge = edge;
+            this.length = length;
+        }
+    }
+}
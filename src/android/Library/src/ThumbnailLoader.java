@@ -0,0 +1,261 @@
+package com.synconset;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Produces the square thumbnails shown in the picker grid at the exact size
+ * of a cell.
+ *
+ * <p>
+ * The disk cache is consulted first. Otherwise, on Android 10 and later the
+ * thumbnail is requested at the cell size with
+ * {@link ContentResolver#loadThumbnail}. On older versions the MediaStore
+ * MINI_KIND thumbnail, or MICRO_KIND for small cells, is decoded with the
+ * largest sample size that still covers the cell. Either way the result is
+ * center cropped to the cell, so no cached pixel goes undrawn.
+ * </p>
+ *
+ * <p>
+ * Thumbnails are produced in the configured pixel format. RGB_565 halves the
+ * memory of a cell, since photos have no alpha. HARDWARE keeps the pixels out
+ * of the Java heap; such bitmaps are decoded in software first because they
+ * cannot be decoded into or drawn onto.
+ * </p>
+ *
+ * <p>
+ * Loading does I/O and must happen off the main thread.
+ * </p>
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = "ImagePicker";
+
+    // Largest size MediaStore uses for MINI_KIND thumbnails
+    private static final int MINI_KIND_WIDTH = 512;
+    private static final int MINI_KIND_HEIGHT = 384;
+    private static final int MICRO_KIND_SIZE = 96;
+
+    public static final String PIXEL_FORMAT_AUTO = "auto";
+    public static final String PIXEL_FORMAT_RGB_565 = "rgb565";
+    public static final String PIXEL_FORMAT_ARGB_8888 = "argb8888";
+    public static final String PIXEL_FORMAT_HARDWARE = "hardware";
+
+    // Memory class in MB at or below which auto picks RGB_565
+    private static final int LOW_MEMORY_CLASS = 64;
+
+    private final ContentResolver resolver;
+    private final ThumbnailDiskCache diskCache;
+    private final BitmapPool pool;
+    private final Bitmap.Config config;
+    private final Bitmap.Config decodeConfig;
+
+    public ThumbnailLoader(Context context, ThumbnailDiskCache diskCache, BitmapPool pool, Bitmap.Config config) {
+        this.resolver = context.getContentResolver();
+        this.diskCache = diskCache;
+        this.pool = pool;
+        this.config = config != null ? config : Bitmap.Config.ARGB_8888;
+        this.decodeConfig = isHardware(this.config) ? Bitmap.Config.ARGB_8888 : this.config;
+    }
+
+    /**
+     * Maps a pixel format option to a bitmap config. With
+     * {@link #PIXEL_FORMAT_AUTO}, or anything unknown, low-RAM devices and
+     * devices with a small memory class get RGB_565, Android 8 and later get
+     * HARDWARE, and everything else ARGB_8888.
+     */
+    public static Bitmap.Config chooseConfig(Context context, String pixelFormat) {
+        if (PIXEL_FORMAT_RGB_565.equals(pixelFormat)) {
+            return Bitmap.Config.RGB_565;
+        } else if (PIXEL_FORMAT_ARGB_8888.equals(pixelFormat)) {
+            return Bitmap.Config.ARGB_8888;
+        } else if (PIXEL_FORMAT_HARDWARE.equals(pixelFormat)) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? Bitmap.Config.HARDWARE : Bitmap.Config.ARGB_8888;
+        }
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            boolean lowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && am.isLowRamDevice();
+            if (lowRam || am.getMemoryClass() <= LOW_MEMORY_CLASS) {
+                return Bitmap.Config.RGB_565;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return Bitmap.Config.HARDWARE;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    public Bitmap.Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @param size
+     *            Edge of the square cell in pixels.
+     * @param signal
+     *            Cancels the request, may be null.
+     * @return The thumbnail, or null if there is none or the request was
+     *         cancelled.
+     */
+    public Bitmap load(long id, long dateModified, int size, CancellationSignal signal) {
+        Bitmap thumb = diskCache.get(id, dateModified, pool, decodeConfig);
+        if (thumb != null && thumb.getWidth() < size && thumb.getHeight() < size) {
+            // Stored for smaller cells, e.g. on another screen size
+            pool.put(thumb);
+            thumb = null;
+        }
+        boolean fromDisk = thumb != null;
+        if (thumb == null) {
+            thumb = decode(id, size, signal);
+        }
+        if (thumb == null || isCanceled(signal)) {
+            pool.put(thumb);
+            return null;
+        }
+
+        thumb = cropToSquare(thumb, size);
+        if (!fromDisk) {
+            diskCache.put(id, dateModified, thumb);
+        }
+        return toHardware(thumb);
+    }
+
+    private Bitmap decode(long id, int size, CancellationSignal signal) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && size > 0) {
+            return loadThumbnail(id, size, signal);
+        }
+        return getThumbnail(id, size);
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private Bitmap loadThumbnail(long id, int size, CancellationSignal signal) {
+        Uri uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+        try {
+            return resolver.loadThumbnail(uri, new Size(size, size), signal);
+        } catch (OperationCanceledException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load thumbnail " + id, e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bitmap getThumbnail(long id, int size) {
+        int kind;
+        BitmapFactory.Options options;
+        if (size > 0 && size <= MICRO_KIND_SIZE) {
+            kind = MediaStore.Images.Thumbnails.MICRO_KIND;
+            options = pool.decodeOptions(MICRO_KIND_SIZE, MICRO_KIND_SIZE, decodeConfig);
+        } else {
+            int sampleSize = 1;
+            while (size > 0 && MINI_KIND_HEIGHT / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+            kind = MediaStore.Images.Thumbnails.MINI_KIND;
+            options = pool.decodeOptions(MINI_KIND_WIDTH / sampleSize, MINI_KIND_HEIGHT / sampleSize, decodeConfig);
+            options.inSampleSize = sampleSize;
+        }
+
+        // The image id doubles as the request group, see cancel()
+        Bitmap thumb;
+        try {
+            thumb = MediaStore.Images.Thumbnails.getThumbnail(resolver, id, id, kind, options);
+        } catch (IllegalArgumentException e) {
+            // The stored thumbnail did not fit the buffer, decode without it
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            thumb = MediaStore.Images.Thumbnails.getThumbnail(resolver, id, id, kind, options);
+        }
+        pool.reclaim(options, thumb);
+        return thumb;
+    }
+
+    /**
+     * Aborts a MediaStore thumbnail request for the given image that another
+     * thread is waiting on. Requests on Android 10 and later are cancelled
+     * through their CancellationSignal instead.
+     */
+    @SuppressWarnings("deprecation")
+    public void cancel(long id) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            MediaStore.Images.Thumbnails.cancelThumbnailRequest(resolver, id, id);
+        }
+    }
+
+    /**
+     * Scales and crops the source to fill a square of the given size in the
+     * decode config, the same way CENTER_CROP would draw it. The source is
+     * handed to the pool.
+     */
+    private Bitmap cropToSquare(Bitmap source, int size) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (size <= 0) {
+            size = Math.min(width, height);
+        }
+        if (width == size && height == size && source.getConfig() == decodeConfig) {
+            return source;
+        }
+
+        Bitmap target = pool.get(size, size, decodeConfig);
+        if (target == null) {
+            target = Bitmap.createBitmap(size, size, decodeConfig);
+        } else {
+            target.eraseColor(Color.TRANSPARENT);
+        }
+
+        float scale = Math.max((float) size / width, (float) size / height);
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((size - width * scale) / 2f, (size - height * scale) / 2f);
+        new Canvas(target).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        pool.put(source);
+        return target;
+    }
+
+    /**
+     * Moves the pixels into graphics memory when HARDWARE is configured. The
+     * software copy goes back to the pool.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private Bitmap toHardware(Bitmap bitmap) {
+        if (!isHardware(config)) {
+            return bitmap;
+        }
+        Bitmap hardware = bitmap.copy(Bitmap.Config.HARDWARE, false);
+        if (hardware == null) {
+            return bitmap;
+        }
+        pool.put(bitmap);
+        return hardware;
+    }
+
+    private static boolean isHardware(Bitmap.Config config) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE;
+    }
+
+    private static boolean isCanceled(CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+}
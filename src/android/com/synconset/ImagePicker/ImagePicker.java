@@ -20,32 +20,60 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 public class ImagePicker extends CordovaPlugin {
 
+    private static final String TAG = "ImagePicker";
     private static final String ACTION_GET_PICTURES = "getPictures";
     private static final String ACTION_HAS_READ_PERMISSION = "hasReadPermission";
     private static final String ACTION_REQUEST_READ_PERMISSION = "requestReadPermission";
+    private static final String ACTION_PRELOAD = "preload";
+
+    // config.xml preference that preloads the picker when the plugin starts
+    private static final String PREFERENCE_PRELOAD = "ImagePickerPreload";
 
     private static final int PERMISSION_REQUEST_CODE = 100;
 
     private CallbackContext callbackContext;
     private Intent imagePickerIntent;
+    // getPictures sends each result as it is ready, then a completion event
+    private boolean streamResults;
+
+    @Override
+    protected void pluginInitialize() {
+        if (preferences.getBoolean(PREFERENCE_PRELOAD, false) && hasReadPermission()) {
+            preload("auto", null);
+        }
+    }
 
     public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
-        this.callbackContext = callbackContext;
+        // Only the actions answered later keep their callback, so a preload or
+        // permission check does not take over the one of an open picker
         if (ACTION_HAS_READ_PERMISSION.equals(action)) {
             callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, hasReadPermission()));
             return true;
 
         } else if (ACTION_REQUEST_READ_PERMISSION.equals(action)) {
+            this.callbackContext = callbackContext;
             requestReadPermission();
             return true;
 
+        } else if (ACTION_PRELOAD.equals(action)) {
+            JSONObject params = args.optJSONObject(0);
+            String gridPixelFormat = params != null ? params.optString("gridPixelFormat", "auto") : "auto";
+            if (hasReadPermission()) {
+                preload(gridPixelFormat, callbackContext);
+            } else {
+                callbackContext.error("Permission denied");
+            }
+            return true;
+
         } else if (ACTION_GET_PICTURES.equals(action)) {
+            this.callbackContext = callbackContext;
             final JSONObject params = args.getJSONObject(0);
             
             this.imagePickerIntent = new Intent(cordova.getActivity(), MultiImageChooserActivity.class);
@@ -57,6 +85,9 @@ public class ImagePicker extends CordovaPlugin {
             boolean includeThumbnail = true;
             int thumbnailWidth = 200;
             int thumbnailHeight = 200;
+            String gridPixelFormat = "auto";
+            int gridPrefetchRows = 2;
+            boolean streamResults = false;
             
             if (params.has("maximumImagesCount")) {
                 max = params.getInt("maximumImagesCount");
@@ -82,6 +113,15 @@ public class ImagePicker extends CordovaPlugin {
             if (params.has("thumbnailHeight")) {
                 thumbnailHeight = params.getInt("thumbnailHeight");
             }
+            if (params.has("gridPixelFormat")) {
+                gridPixelFormat = params.getString("gridPixelFormat");
+            }
+            if (params.has("gridPrefetchRows")) {
+                gridPrefetchRows = params.getInt("gridPrefetchRows");
+            }
+            if (params.has("streamResults")) {
+                streamResults = params.getBoolean("streamResults");
+            }
 
             imagePickerIntent.putExtra("MAX_IMAGES", max);
             imagePickerIntent.putExtra("WIDTH", desiredWidth);
@@ -91,6 +131,16 @@ public class ImagePicker extends CordovaPlugin {
             imagePickerIntent.putExtra("INCLUDE_THUMBNAIL", includeThumbnail);
             imagePickerIntent.putExtra("THUMBNAIL_WIDTH", thumbnailWidth);
             imagePickerIntent.putExtra("THUMBNAIL_HEIGHT", thumbnailHeight);
+            imagePickerIntent.putExtra("GRID_PIXEL_FORMAT", gridPixelFormat);
+            imagePickerIntent.putExtra("GRID_PREFETCH_ROWS", gridPrefetchRows);
+            imagePickerIntent.putExtra("STREAM_RESULTS", streamResults);
+
+            this.streamResults = streamResults;
+            if (streamResults) {
+                openResultStream(callbackContext);
+            } else {
+                ResultStream.get().setListener(null);
+            }
 
             // Check permissions based on Android version
             if (cordova != null) {
@@ -111,6 +161,80 @@ public class ImagePicker extends CordovaPlugin {
         return false;
     }
 
+    /**
+     * Reads the picker's first page and first screen of thumbnails in the
+     * background, so the next getPictures opens with a full grid.
+     */
+    private void preload(final String gridPixelFormat, final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    PickerPreloader.preload(cordova.getActivity(), gridPixelFormat);
+                } catch (RuntimeException e) {
+                    // e.g. permission revoked since it was checked
+                    preloadFailed(e, callbackContext);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    preloadFailed(e, callbackContext);
+                    return;
+                }
+                if (callbackContext != null) {
+                    callbackContext.success();
+                }
+            }
+        });
+    }
+
+    /**
+     * A preload is only an optimization, the picker reads everything itself
+     * when there is none.
+     */
+    private void preloadFailed(Throwable error, CallbackContext callbackContext) {
+        if (callbackContext != null) {
+            callbackContext.error(String.valueOf(error.getMessage()));
+        } else {
+            Log.w(TAG, "Unable to preload the picker", error);
+        }
+    }
+
+    /**
+     * Sends each image to JavaScript as soon as the picker has processed it,
+     * as a {type: 'result', index, result} event, keeping the callback for
+     * the ones that follow.
+     */
+    private void openResultStream(final CallbackContext callbackContext) {
+        ResultStream.get().setListener(new ResultStream.Listener() {
+            public void onResult(int index, Object result) {
+                try {
+                    JSONObject event = new JSONObject();
+                    event.put("type", "result");
+                    event.put("index", index);
+                    event.put("result", result);
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+                    pluginResult.setKeepCallback(true);
+                    callbackContext.sendPluginResult(pluginResult);
+                } catch (JSONException e) {
+                    // Not expected for a string or an object, the completion event still follows
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends a streamed getPictures with a {type: 'complete', count} event.
+     */
+    private void completeResultStream(int count) {
+        ResultStream.get().setListener(null);
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", "complete");
+            event.put("count", count);
+            callbackContext.success(event);
+        } catch (JSONException e) {
+            callbackContext.error(e.getMessage());
+        }
+    }
+
     @SuppressLint("InlinedApi")
     private String getRequiredPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -142,6 +266,19 @@ public class ImagePicker extends CordovaPlugin {
     }
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (streamResults) {
+            streamResults = false;
+            ResultStream.get().setListener(null);
+            if (resultCode == Activity.RESULT_OK && data != null) {
+                Bundle bigData = ResultIPC.get().getLargeData(data.getIntExtra("bigdata:synccode", -1));
+                completeResultStream(bigData != null ? bigData.getInt("STREAMED_COUNT") : 0);
+                return;
+            } else if (resultCode == Activity.RESULT_CANCELED && data == null) {
+                completeResultStream(0);
+                return;
+            }
+        }
+
         if (resultCode == Activity.RESULT_OK && data != null) {
             int sync = data.getIntExtra("bigdata:synccode", -1);
             final Bundle bigData = ResultIPC.get().getLargeData(sync);
@@ -199,6 +336,8 @@ public class ImagePicker extends CordovaPlugin {
         if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
             cordova.startActivityForResult(this, this.imagePickerIntent, 0);
         } else {
+            streamResults = false;
+            ResultStream.get().setListener(null);
             // Tell the JS layer that something went wrong...
             callbackContext.error("Permission denied");
         }
@@ -0,0 +1,64 @@
+package com.synconset;
+
+/**
+ * Hands each processed image from the picker to the plugin as soon as it is
+ * ready, when getPictures was called with streamResults. The plugin sets the
+ * listener before it opens the picker and clears it once the picker returns.
+ * The picker closes the stream when it fails, so that no result follows the
+ * error.
+ */
+public class ResultStream {
+
+    public interface Listener {
+        /**
+         * Called on a worker thread of the picker.
+         *
+         * @param index
+         *            Position of the image in the selection.
+         * @param result
+         *            The result as getPictures returns it for one image, a
+         *            JSONObject or a String.
+         */
+        void onResult(int index, Object result);
+    }
+
+    private static ResultStream instance;
+
+    public synchronized static ResultStream get() {
+        if (instance == null) {
+            instance = new ResultStream();
+        }
+        return instance;
+    }
+
+    private Listener listener;
+    private boolean closed;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+        closed = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return listener != null;
+    }
+
+    /**
+     * Drops every result published from now on, until the next listener is
+     * set. A result being delivered when it is called is delivered before it
+     * returns.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * Delivers the result while holding the lock, so that it cannot overtake
+     * {@link #close}.
+     */
+    public synchronized void publish(int index, Object result) {
+        if (listener != null && !closed) {
+            listener.onResult(index, result);
+        }
+    }
+}
@@ -32,6 +32,25 @@ ImagePicker.prototype.requestReadPermission = function(callback, failureCallback
   return cordova.exec(callback, failureCallback, "ImagePicker", "requestReadPermission", []);
 };
 
+/*
+*	Android only. Reads the picker's first page of images and decodes the thumbnails of its
+*	first screen ahead of time, so the next getPictures opens with a full grid. Call it once
+*	read permission is granted, e.g. a little before the picker may be opened. The preload is
+*	kept for a minute.
+*
+*	success - called once the preload is done
+*	fail - error callback, e.g. without read permission
+*	options
+*		.gridPixelFormat - the gridPixelFormat getPictures will be called with (default: 'auto')
+*/
+ImagePicker.prototype.preload = function(success, fail, options) {
+	var params = {
+		gridPixelFormat: options && options.gridPixelFormat ? options.gridPixelFormat : 'auto'
+	};
+
+	return cordova.exec(success, fail, "ImagePicker", "preload", [params]);
+};
+
 /*
 *	success - success callback
 *	fail - error callback
@@ -48,6 +67,16 @@ ImagePicker.prototype.requestReadPermission = function(callback, failureCallback
 *		.includeThumbnail - whether to include thumbnail data (default: true)
 *		.thumbnailWidth - width of thumbnail (default: 200)
 *		.thumbnailHeight - height of thumbnail (default: 200)
+*		.gridPixelFormat - Android only. Pixel format of the picker grid thumbnails: 'auto',
+*		                   'rgb565', 'argb8888' or 'hardware' (default: 'auto', which picks
+*		                   rgb565 on low-memory devices)
+*		.gridPrefetchRows - Android only. Rows of the picker grid kept bound off screen and laid
+*		                    out ahead of a scroll (default: 2, 0 disables ahead-of-time layout)
+*		.streamResults - Android only. Call success once per image as soon as it is processed,
+*		                 with {type: 'result', index, result}, where index is the position in the
+*		                 selection and result what the results array would hold for it. Images
+*		                 may arrive out of order. A final {type: 'complete', count} follows
+*		                 (default: false)
 */
 ImagePicker.prototype.getPictures = function(success, fail, options) {
 	if (!options) {
@@ -68,7 +97,10 @@ ImagePicker.prototype.getPictures = function(success, fail, options) {
 		disable_popover: options.disable_popover ? options.disable_popover : false, // Disable the iOS popover as seen on iPad
 		includeThumbnail: options.includeThumbnail !== false, // Default true for enhanced metadata
 		thumbnailWidth: options.thumbnailWidth ? options.thumbnailWidth : 200,
-		thumbnailHeight: options.thumbnailHeight ? options.thumbnailHeight : 200
+		thumbnailHeight: options.thumbnailHeight ? options.thumbnailHeight : 200,
+		gridPixelFormat: options.gridPixelFormat ? options.gridPixelFormat : 'auto',
+		gridPrefetchRows: typeof options.gridPrefetchRows === 'number' ? options.gridPrefetchRows : 2,
+		streamResults: options.streamResults === true
 	};
 
 	return cordova.exec(success, fail, "ImagePicker", "getPictures", [params]);